@@ -15,8 +15,11 @@
 package com.ibm.baw.migrator;
 
 import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.client.RetryPolicy;
 import com.ibm.baw.migrator.model.Project;
-import com.ibm.baw.migrator.model.ProjectsResponse;
+import com.ibm.baw.migrator.service.DependencyStrategy;
+import com.ibm.baw.migrator.service.MetadataRepository;
+import com.ibm.baw.migrator.service.MigrationOptions;
 import com.ibm.baw.migrator.service.MigrationService;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
@@ -24,6 +27,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Main application for migrating IBM BAW Process Apps between systems
@@ -44,17 +50,28 @@ public class ProcessAppMigrator {
                 return;
             }
 
+            boolean exportOnly = cmd.hasOption("export-only");
+            boolean importOnly = cmd.hasOption("import-only");
+            if (exportOnly && importOnly) {
+                throw new ParseException("--export-only and --import-only cannot be combined");
+            }
+            boolean dryRun = cmd.hasOption("dry-run");
+            if (dryRun && (exportOnly || importOnly)) {
+                throw new ParseException("--dry-run cannot be combined with --export-only or --import-only");
+            }
+
             // Validate required options
-            validateRequiredOptions(cmd);
+            validateRequiredOptions(cmd, !importOnly, !exportOnly);
 
             // Get configuration from command line
             String sourceUrl = cmd.getOptionValue("source-url");
             String sourceUser = cmd.getOptionValue("source-user");
             String sourcePassword = cmd.getOptionValue("source-password");
             
-            String targetUrl = cmd.getOptionValue("target-url");
-            String targetUser = cmd.getOptionValue("target-user");
-            String targetPassword = cmd.getOptionValue("target-password");
+            // Several targets are given by repeating the target options
+            String[] targetUrls = exportOnly ? new String[0] : cmd.getOptionValues("target-url");
+            String[] targetUsers = exportOnly ? new String[0] : perTargetValues(cmd, "target-user", targetUrls.length);
+            String[] targetPasswords = exportOnly ? new String[0] : perTargetValues(cmd, "target-password", targetUrls.length);
             
             String exportDir = cmd.getOptionValue("export-dir", "./exports");
             String projectName = cmd.getOptionValue("project");
@@ -62,6 +79,43 @@ public class ProcessAppMigrator {
             boolean migrateAll = cmd.hasOption("all");
             boolean ignoreBranches = cmd.hasOption("ignore-branches");
 
+            MigrationOptions migrationOptions = new MigrationOptions();
+            migrationOptions.setIgnoreBranches(ignoreBranches);
+            migrationOptions.setPipelineEnabled(cmd.hasOption("pipeline"));
+            migrationOptions.setStreaming(cmd.hasOption("stream"));
+            migrationOptions.setExportThreads(parseIntOption(cmd, "export-threads", migrationOptions.getExportThreads()));
+            migrationOptions.setImportThreads(parseIntOption(cmd, "import-threads", migrationOptions.getImportThreads()));
+            migrationOptions.setMaxPendingExports(parseIntOption(cmd, "max-pending-exports", migrationOptions.getMaxPendingExports()));
+            migrationOptions.setIncremental(cmd.hasOption("incremental"));
+            migrationOptions.setResume(cmd.hasOption("resume"));
+            migrationOptions.setDryRun(dryRun);
+            if (cmd.hasOption("export-cache-dir")) {
+                migrationOptions.setExportCacheDirectory(new File(cmd.getOptionValue("export-cache-dir")));
+            }
+            migrationOptions.setExportCacheMaxBytes(parseIntOption(cmd, "export-cache-size",
+                    (int) (migrationOptions.getExportCacheMaxBytes() / (1024 * 1024))) * 1024L * 1024L);
+            if (cmd.hasOption("metadata-cache-dir")) {
+                migrationOptions.setMetadataCacheDirectory(new File(cmd.getOptionValue("metadata-cache-dir")));
+            }
+            migrationOptions.setMetadataCacheSize(parseIntOption(cmd, "metadata-cache-size", migrationOptions.getMetadataCacheSize()));
+            migrationOptions.setMaxInFlightRequests(parseIntOption(cmd, "max-in-flight", migrationOptions.getMaxInFlightRequests()));
+            migrationOptions.setToolkitThreads(parseIntOption(cmd, "toolkit-threads", migrationOptions.getToolkitThreads()));
+            if (cmd.hasOption("dependency-strategy")) {
+                try {
+                    migrationOptions.setDependencyStrategy(DependencyStrategy.fromName(cmd.getOptionValue("dependency-strategy")));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid value for --dependency-strategy: " + cmd.getOptionValue("dependency-strategy"));
+                }
+            }
+
+            migrationOptions.setUsedVersionsOnly(cmd.hasOption("used-versions-only"));
+
+            RetryPolicy retryPolicy = new RetryPolicy(
+                    parseIntOption(cmd, "max-retries", RetryPolicy.DEFAULT_MAX_ATTEMPTS - 1) + 1,
+                    parseIntOption(cmd, "retry-delay", (int) (RetryPolicy.DEFAULT_INITIAL_DELAY_MILLIS / 1000)) * 1000L,
+                    RetryPolicy.DEFAULT_MAX_DELAY_MILLIS);
+            int maxConcurrency = parseIntOption(cmd, "max-concurrency", BAWApiClient.DEFAULT_MAX_CONCURRENCY);
+
             // Create export directory
             File exportDirectory = new File(exportDir);
             if (!exportDirectory.exists()) {
@@ -69,61 +123,67 @@ public class ProcessAppMigrator {
                 logger.info("Created export directory: {}", exportDirectory.getAbsolutePath());
             }
 
-            // Initialize API clients (CSRF tokens are obtained automatically)
-            logger.info("Connecting to source system: {}", sourceUrl);
-            BAWApiClient sourceClient = new BAWApiClient(sourceUrl, sourceUser, sourcePassword);
+            // Initialize API clients (CSRF tokens are obtained automatically); a bundle import needs no source
+            BAWApiClient sourceClient = null;
+            if (!importOnly) {
+                logger.info("Connecting to source system: {}", sourceUrl);
+                sourceClient = new BAWApiClient(sourceUrl, sourceUser, sourcePassword, retryPolicy, maxConcurrency);
+            }
             
-            logger.info("Connecting to target system: {}", targetUrl);
-            BAWApiClient targetClient = new BAWApiClient(targetUrl, targetUser, targetPassword);
+            List<BAWApiClient> targetClients = new ArrayList<>();
+            for (int i = 0; i < targetUrls.length; i++) {
+                logger.info("Connecting to target system: {}", targetUrls[i]);
+                targetClients.add(new BAWApiClient(targetUrls[i], targetUsers[i], targetPasswords[i], retryPolicy, maxConcurrency));
+            }
 
             // Create migration service
             MigrationService migrationService = new MigrationService(
                 sourceClient,
-                targetClient,
+                targetClients,
                 exportDirectory,
-                ignoreBranches
+                migrationOptions
             );
 
             // Perform migration
-            if (migrateAll) {
-                logger.info("Starting migration of all Process Apps");
-                migrationService.migrateAllProcessApps();
-            } else if (projectsAcronyms != null) {
-                // Migrate multiple projects by acronym
-                String[] acronyms = projectsAcronyms.split(",");
-                logger.info("Starting migration of {} Process Apps by acronym", acronyms.length);
-                
-                for (String acronym : acronyms) {
-                    acronym = acronym.trim();
-                    if (acronym.isEmpty()) {
-                        continue;
-                    }
-                    
-                    logger.info("Migrating Process App with acronym: {}", acronym);
-                    Project project = findProjectByAcronym(sourceClient, acronym);
-                    if (project == null) {
-                        logger.error("Process App not found with acronym: {}", acronym);
-                        continue; // Continue with next project instead of exiting
-                    }
-                    migrationService.migrateProcessApp(project);
+            if (importOnly) {
+                logger.info("Starting import of the migration bundle in: {}", exportDirectory.getAbsolutePath());
+                migrationService.importBundle();
+            } else {
+                List<Project> projects = findSelectedProjects(migrationService, migrateAll, projectsAcronyms, projectName);
+                if (projects == null) {
+                    logger.error("Either --project, --projects, or --all must be specified");
+                    printHelp(formatter, options);
+                    System.exit(1);
                 }
-            } else if (projectName != null) {
-                logger.info("Starting migration of Process App: {}", projectName);
-                Project project = findProjectByName(sourceClient, projectName);
-                if (project == null) {
-                    logger.error("Process App not found: {}", projectName);
+                if (projects.isEmpty() && !migrateAll) {
+                    logger.error("None of the selected Process Apps was found on the source");
                     System.exit(1);
                 }
-                migrationService.migrateProcessApp(project);
-            } else {
-                logger.error("Either --project, --projects, or --all must be specified");
-                printHelp(formatter, options);
-                System.exit(1);
+
+                if (exportOnly) {
+                    logger.info("Starting export of {} Process Apps to a migration bundle", projects.size());
+                    migrationService.exportBundle(projects);
+                } else if (dryRun) {
+                    logger.info("Planning the migration of {} Process Apps without exporting or importing", projects.size());
+                    migrationService.estimateProcessApps(projects).report();
+                } else if (!migrateAll && projectsAcronyms == null) {
+                    logger.info("Starting migration of Process App: {}", projectName);
+                    migrationService.migrateProcessApp(projects.get(0));
+                } else {
+                    // Toolkits shared between the Process Apps are migrated once
+                    logger.info("Starting migration of {} Process Apps", projects.size());
+                    migrationService.migrateProcessApps(projects);
+                }
             }
 
             // Close clients
-            sourceClient.close();
-            targetClient.close();
+            migrationService.shutdown();
+            if (sourceClient != null) {
+                sourceClient.close();
+            }
+            for (BAWApiClient targetClient : targetClients) {
+                targetClient.close();
+            }
 
             logger.info("Migration completed successfully!");
 
@@ -147,47 +207,42 @@ public class ProcessAppMigrator {
         Options options = new Options();
 
         // Source system options
+        // Required unless --import-only is given
         options.addOption(Option.builder("su")
                 .longOpt("source-url")
                 .hasArg()
                 .desc("Source system base URL (e.g., https://source-server:9443)")
-                .required()
                 .build());
 
         options.addOption(Option.builder("suser")
                 .longOpt("source-user")
                 .hasArg()
                 .desc("Source system username")
-                .required()
                 .build());
 
         options.addOption(Option.builder("spass")
                 .longOpt("source-password")
                 .hasArg()
                 .desc("Source system password")
-                .required()
                 .build());
 
-        // Target system options
+        // Target system options, required unless --export-only is given
         options.addOption(Option.builder("tu")
                 .longOpt("target-url")
                 .hasArg()
-                .desc("Target system base URL (e.g., https://target-server:9443)")
-                .required()
+                .desc("Target system base URL (e.g., https://target-server:9443); repeat to migrate to several targets at once")
                 .build());
 
         options.addOption(Option.builder("tuser")
                 .longOpt("target-user")
                 .hasArg()
-                .desc("Target system username")
-                .required()
+                .desc("Target system username; repeat once per --target-url if the targets differ")
                 .build());
 
         options.addOption(Option.builder("tpass")
                 .longOpt("target-password")
                 .hasArg()
-                .desc("Target system password")
-                .required()
+                .desc("Target system password; repeat once per --target-url if the targets differ")
                 .build());
 
         // Migration options
@@ -219,6 +274,124 @@ public class ProcessAppMigrator {
                 .desc("Only export/import snapshots from the default branch (ignore other branches)")
                 .build());
 
+        options.addOption(Option.builder("inc")
+                .longOpt("incremental")
+                .desc("Only export/import snapshots that are missing on the target, also for projects that already exist there")
+                .build());
+
+        options.addOption(Option.builder("r")
+                .longOpt("resume")
+                .desc("Resume an interrupted migration from the journal in the export directory, skipping completed steps")
+                .build());
+
+        options.addOption(Option.builder("ec")
+                .longOpt("export-cache-dir")
+                .hasArg()
+                .desc("Directory of a content-addressed export cache that is reused across runs, projects and targets")
+                .build());
+
+        options.addOption(Option.builder("ecs")
+                .longOpt("export-cache-size")
+                .hasArg()
+                .desc("Disk budget of the export cache in MB; least recently used exports are evicted (default: 10240)")
+                .build());
+
+        options.addOption(Option.builder("xo")
+                .longOpt("export-only")
+                .desc("Only export the selected Process Apps with their toolkits to a migration bundle in the export directory; no target is contacted")
+                .build());
+
+        options.addOption(Option.builder("io")
+                .longOpt("import-only")
+                .desc("Only import the migration bundle in the export directory to the target(s); no source is contacted")
+                .build());
+
+        options.addOption(Option.builder("dr")
+                .longOpt("dry-run")
+                .desc("Only plan the migration and estimate its API requests, bytes and duration; nothing is exported or imported")
+                .build());
+
+        options.addOption(Option.builder("pl")
+                .longOpt("pipeline")
+                .desc("Overlap exports from the source with imports to the target")
+                .build());
+
+        options.addOption(Option.builder("st")
+                .longOpt("stream")
+                .desc("Import each snapshot while it is exported, without writing the export to disk")
+                .build());
+
+        options.addOption(Option.builder("et")
+                .longOpt("export-threads")
+                .hasArg()
+                .desc("Number of concurrent exports when --pipeline is used (default: 2)")
+                .build());
+
+        options.addOption(Option.builder("it")
+                .longOpt("import-threads")
+                .hasArg()
+                .desc("Number of concurrent imports of different projects when --pipeline is used (default: 1)")
+                .build());
+
+        options.addOption(Option.builder("mpe")
+                .longOpt("max-pending-exports")
+                .hasArg()
+                .desc("Maximum number of exported snapshots waiting to be imported when --pipeline is used (default: 4)")
+                .build());
+
+        options.addOption(Option.builder("tt")
+                .longOpt("toolkit-threads")
+                .hasArg()
+                .desc("Number of independent toolkits migrated in parallel (default: 1)")
+                .build());
+
+        options.addOption(Option.builder("mcd")
+                .longOpt("metadata-cache-dir")
+                .hasArg()
+                .desc("Directory in which the metadata of the source is kept between runs and revalidated with last_update requests")
+                .build());
+
+        options.addOption(Option.builder("mcs")
+                .longOpt("metadata-cache-size")
+                .hasArg()
+                .desc("Maximum number of branch, snapshot and dependency responses of each system kept in memory (default: 10000)")
+                .build());
+
+        options.addOption(Option.builder("mif")
+                .longOpt("max-in-flight")
+                .hasArg()
+                .desc("Maximum number of concurrent metadata requests to the source during dependency discovery (default: 1)")
+                .build());
+
+        options.addOption(Option.builder("mc")
+                .longOpt("max-concurrency")
+                .hasArg()
+                .desc("Upper bound of the number of requests in flight to each system; the actual limit adapts to the latency and errors of the system (default: 16)")
+                .build());
+
+        options.addOption(Option.builder("mr")
+                .longOpt("max-retries")
+                .hasArg()
+                .desc("Number of times a request is retried after a transient failure such as a 503 or a connection reset (default: 3)")
+                .build());
+
+        options.addOption(Option.builder("rd")
+                .longOpt("retry-delay")
+                .hasArg()
+                .desc("Seconds to wait before the first retry; the delay doubles with every further retry (default: 2)")
+                .build());
+
+        options.addOption(Option.builder("ds")
+                .longOpt("dependency-strategy")
+                .hasArg()
+                .desc("How toolkit dependencies are discovered: what_used_branch (default), what_used or recursive")
+                .build());
+
+        options.addOption(Option.builder("uvo")
+                .longOpt("used-versions-only")
+                .desc("Only migrate the toolkit snapshots that the Process App snapshots use, instead of every toolkit snapshot")
+                .build());
+
         options.addOption(Option.builder("h")
                 .longOpt("help")
                 .desc("Print this help message")
@@ -229,10 +402,18 @@ public class ProcessAppMigrator {
 
     /**
      * Validate required options
+     *
+     * @param sourceRequired Whether the source system is used
+     * @param targetRequired Whether the target systems are used
      */
-    private static void validateRequiredOptions(CommandLine cmd) throws ParseException {
-        String[] required = {"source-url", "source-user", "source-password", 
-                           "target-url", "target-user", "target-password"};
+    private static void validateRequiredOptions(CommandLine cmd, boolean sourceRequired, boolean targetRequired) throws ParseException {
+        List<String> required = new ArrayList<>();
+        if (sourceRequired) {
+            required.addAll(Arrays.asList("source-url", "source-user", "source-password"));
+        }
+        if (targetRequired) {
+            required.addAll(Arrays.asList("target-url", "target-user", "target-password"));
+        }
         
         for (String opt : required) {
             if (!cmd.hasOption(opt)) {
@@ -241,6 +422,77 @@ public class ProcessAppMigrator {
         }
     }
 
+    /**
+     * Find the Process Apps selected by --all, --projects or --project
+     * A Process App that is not found is logged and skipped.
+     *
+     * @return The Process Apps, or null if no selection option was given
+     */
+    private static List<Project> findSelectedProjects(MigrationService migrationService, boolean all,
+                                                      String acronyms, String projectName) throws IOException {
+        if (all) {
+            return migrationService.findAllProcessApps();
+        }
+        List<Project> projects = new ArrayList<>();
+        if (acronyms != null) {
+            for (String acronym : acronyms.split(",")) {
+                acronym = acronym.trim();
+                if (acronym.isEmpty()) {
+                    continue;
+                }
+                Project project = findProjectByAcronym(migrationService.getSourceMetadata(), acronym);
+                if (project == null) {
+                    logger.error("Process App not found with acronym: {}", acronym);
+                    continue;
+                }
+                projects.add(project);
+            }
+            return projects;
+        }
+        if (projectName != null) {
+            Project project = findProjectByName(migrationService.getSourceMetadata(), projectName);
+            if (project == null) {
+                logger.error("Process App not found: {}", projectName);
+            } else {
+                projects.add(project);
+            }
+            return projects;
+        }
+        return null;
+    }
+
+    /**
+     * Get the value of a target option for every target
+     * A single value applies to all targets; otherwise there must be one value per --target-url.
+     */
+    private static String[] perTargetValues(CommandLine cmd, String option, int targetCount) throws ParseException {
+        String[] values = cmd.getOptionValues(option);
+        if (values.length == targetCount) {
+            return values;
+        }
+        if (values.length == 1) {
+            String[] shared = new String[targetCount];
+            Arrays.fill(shared, values[0]);
+            return shared;
+        }
+        throw new ParseException("--" + option + " must be given once or once per --target-url (" + targetCount + " times)");
+    }
+
+    /**
+     * Parse an optional integer option
+     */
+    private static int parseIntOption(CommandLine cmd, String option, int defaultValue) throws ParseException {
+        String value = cmd.getOptionValue(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid value for --" + option + ": " + value);
+        }
+    }
+
     /**
      * Print help message
      */
@@ -265,6 +517,28 @@ public class ProcessAppMigrator {
                        "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
                        "      --target-url https://target:9443 --target-user admin --target-password pass2 \\\n" +
                        "      --projects PA1,PA2,PA3\n\n" +
+                       "  Migrate a Process App with exports and imports running concurrently:\n" +
+                       "    java -jar process-app-migrator.jar \\\n" +
+                       "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
+                       "      --target-url https://target:9443 --target-user admin --target-password pass2 \\\n" +
+                       "      --project \"My Process App\" --pipeline --export-threads 4 --max-pending-exports 8\n\n" +
+                       "  Promote a Process App to several targets, exporting each snapshot only once:\n" +
+                       "    java -jar process-app-migrator.jar \\\n" +
+                       "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
+                       "      --target-url https://test:9443 --target-url https://prod:9443 \\\n" +
+                       "      --target-user admin --target-password pass2 --project \"My Process App\"\n\n" +
+                       "  Export Process Apps to a bundle, then import the bundle once the target is reachable:\n" +
+                       "    java -jar process-app-migrator.jar \\\n" +
+                       "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
+                       "      --projects PA1,PA2 --export-dir ./bundle --export-only\n" +
+                       "    java -jar process-app-migrator.jar \\\n" +
+                       "      --target-url https://target:9443 --target-user admin --target-password pass2 \\\n" +
+                       "      --export-dir ./bundle --import-only\n\n" +
+                       "  Estimate the cost of migrating all Process Apps without migrating anything:\n" +
+                       "    java -jar process-app-migrator.jar \\\n" +
+                       "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
+                       "      --target-url https://target:9443 --target-user admin --target-password pass2 \\\n" +
+                       "      --all --dry-run --export-cache-dir ./cache\n\n" +
                        "  Migrate all Process Apps:\n" +
                        "    java -jar process-app-migrator.jar \\\n" +
                        "      --source-url https://source:9443 --source-user admin --source-password pass1 \\\n" +
@@ -278,16 +552,13 @@ public class ProcessAppMigrator {
 
     /**
      * Find a project by name
+     * The catalog is loaded once and reused by the dependency resolution
      */
-    private static Project findProjectByName(BAWApiClient client, String projectName) throws IOException {
-        ProjectsResponse response = client.getProjects();
-        
-        if (response.getProjects() != null) {
-            for (Project project : response.getProjects()) {
-                if (projectName.equals(project.getName()) ||
-                    projectName.equals(project.getDisplayName())) {
-                    return project;
-                }
+    private static Project findProjectByName(MetadataRepository metadata, String projectName) throws IOException {
+        for (Project project : metadata.getProjects()) {
+            if (projectName.equals(project.getName()) ||
+                projectName.equals(project.getDisplayName())) {
+                return project;
             }
         }
         
@@ -297,18 +568,8 @@ public class ProcessAppMigrator {
     /**
      * Find a project by acronym
      */
-    private static Project findProjectByAcronym(BAWApiClient client, String acronym) throws IOException {
-        ProjectsResponse response = client.getProjects();
-        
-        if (response.getProjects() != null) {
-            for (Project project : response.getProjects()) {
-                if (acronym.equals(project.getAcronym())) {
-                    return project;
-                }
-            }
-        }
-        
-        return null;
+    private static Project findProjectByAcronym(MetadataRepository metadata, String acronym) throws IOException {
+        return metadata.findByAcronym(acronym);
     }
 }
 
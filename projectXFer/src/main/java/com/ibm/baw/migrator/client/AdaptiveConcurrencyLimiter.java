@@ -0,0 +1,207 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits the number of requests in flight to a host, adapting the limit to how the host copes (AIMD)
+ * While the limit is in use and the latency of small requests stays near its unloaded level, the limit
+ * grows by about one per round of requests. A timeout or a 5xx response halves it, at most once per
+ * round trip so that one burst of failures does not collapse it to the minimum. All clients of the same
+ * host share one limiter; blocking callers wait in {@link #acquire()}, non-blocking callers queue a
+ * callback with {@link #submit(Runnable)}.
+ */
+class AdaptiveConcurrencyLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    private static final int INITIAL_LIMIT = 4;
+    private static final int MIN_LIMIT = 1;
+    private static final double DECREASE_FACTOR = 0.5;
+    // Latency above this multiple of the unloaded latency stops the limit from growing
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    // How fast the unloaded latency estimate follows slower samples, e.g. after the host got slower
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private static final ConcurrentMap<String, AdaptiveConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * How a request ended, as far as the load of the host is concerned
+     */
+    enum Outcome {
+        // The host answered in time
+        SUCCESS,
+        // The host timed out or answered with a 5xx status
+        OVERLOAD,
+        // The request failed for a reason that says nothing about the load of the host
+        IGNORE
+    }
+
+    private final String host;
+    private final int maxLimit;
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private int blocked = 0;
+    private double baselineMillis = -1;
+    private double smoothedMillis = -1;
+    private long lastDecrease = 0;
+    private int loggedLimit;
+
+    private AdaptiveConcurrencyLimiter(String host, int maxLimit) {
+        this.host = host;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.loggedLimit = (int) limit;
+    }
+
+    /**
+     * Get the limiter shared by all clients of the host of the given URL
+     *
+     * @param maxLimit Upper bound of the limit; only used by the first client of the host
+     */
+    static AdaptiveConcurrencyLimiter forUrl(String url, int maxLimit) {
+        URI uri = URI.create(url);
+        String host = uri.getHost() != null ? uri.getHost() + ":" + uri.getPort() : url;
+        return LIMITERS.computeIfAbsent(host, key -> new AdaptiveConcurrencyLimiter(key, maxLimit));
+    }
+
+    /**
+     * Wait until a request may be sent; every successful call must be followed by {@link #release}
+     */
+    synchronized void acquire() throws InterruptedIOException {
+        blocked++;
+        try {
+            while (inFlight >= currentLimit() || !waiting.isEmpty()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot for " + host);
+        } finally {
+            blocked--;
+        }
+        inFlight++;
+    }
+
+    /**
+     * Run the given action as soon as a request may be sent, without blocking the caller
+     * The action must call {@link #release} when its request has completed.
+     */
+    void submit(Runnable start) {
+        synchronized (this) {
+            if (inFlight >= currentLimit() || !waiting.isEmpty()) {
+                waiting.add(start);
+                return;
+            }
+            inFlight++;
+        }
+        start.run();
+    }
+
+    /**
+     * Free the slot of a completed request and adapt the limit to its outcome
+     *
+     * @param latencyMillis Duration of the request, or a negative value if it does not reflect the load of
+     *                      the host (e.g. a bulk transfer whose duration depends on its size)
+     */
+    void release(long latencyMillis, Outcome outcome) {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            boolean saturated = inFlight >= currentLimit() || !waiting.isEmpty() || blocked > 0;
+            inFlight--;
+            if (outcome == Outcome.OVERLOAD) {
+                decrease();
+            } else if (outcome == Outcome.SUCCESS) {
+                if (latencyMillis >= 0) {
+                    sample(latencyMillis);
+                }
+                // Only grow a limit that is actually reached, and only while the host keeps up
+                if (saturated && !isLatencyRising()) {
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            }
+            logLimitChange();
+
+            while (inFlight < currentLimit() && !waiting.isEmpty()) {
+                inFlight++;
+                ready.add(waiting.poll());
+            }
+            notifyAll();
+        }
+        // The slots pass directly to the waiting requests
+        for (Runnable start : ready) {
+            start.run();
+        }
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    private void decrease() {
+        long now = System.currentTimeMillis();
+        long roundTrip = smoothedMillis > 0 ? (long) smoothedMillis : 0;
+        if (now - lastDecrease < Math.max(roundTrip, 1000)) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+    }
+
+    private void sample(long latencyMillis) {
+        if (baselineMillis < 0) {
+            baselineMillis = latencyMillis;
+            smoothedMillis = latencyMillis;
+            return;
+        }
+        smoothedMillis += SMOOTHING * (latencyMillis - smoothedMillis);
+        if (latencyMillis < baselineMillis) {
+            baselineMillis = latencyMillis;
+        } else {
+            baselineMillis += BASELINE_DRIFT * (latencyMillis - baselineMillis);
+        }
+    }
+
+    private boolean isLatencyRising() {
+        return baselineMillis >= 0 && smoothedMillis > LATENCY_TOLERANCE * Math.max(baselineMillis, 1);
+    }
+
+    private void logLimitChange() {
+        int current = currentLimit();
+        if (current != loggedLimit) {
+            if (current < loggedLimit) {
+                logger.warn("{} is overloaded, lowering concurrency limit from {} to {}", host, loggedLimit, current);
+            } else {
+                logger.debug("Raising concurrency limit for {} from {} to {} (latency {} ms, unloaded {} ms)",
+                           host, loggedLimit, current, Math.round(smoothedMillis), Math.round(baselineMillis));
+            }
+            loggedLimit = current;
+        }
+    }
+}
+
+// Made with Bob
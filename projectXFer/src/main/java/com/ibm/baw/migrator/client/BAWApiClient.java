@@ -14,12 +14,18 @@
  */
 package com.ibm.baw.migrator.client;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.ibm.baw.migrator.model.*;
+import org.apache.hc.client5.http.ConnectTimeoutException;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.mime.ContentBody;
 import org.apache.hc.client5.http.entity.mime.FileBody;
+import org.apache.hc.client5.http.entity.mime.InputStreamBody;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
@@ -29,6 +35,7 @@ import org.apache.hc.client5.http.io.HttpClientConnectionManager;
 import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
 import org.apache.hc.client5.http.ssl.TrustAllStrategy;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
@@ -38,48 +45,91 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Client for interacting with IBM BAW Repository REST APIs
  */
 public class BAWApiClient {
     private static final Logger logger = LoggerFactory.getLogger(BAWApiClient.class);
-    private static final int MAX_RETRY_ATTEMPTS = 1; // Retry once on 401
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    // CSRF tokens expire after 2 hours by default; renew them before that
+    private static final long CSRF_TOKEN_RENEW_AFTER_MILLIS = 110L * 60 * 1000;
+    // Imports at least this large make sure their CSRF token outlives the upload before sending it
+    private static final long LARGE_UPLOAD_BYTES = 16L * 1024 * 1024;
+    private static final long LARGE_UPLOAD_TOKEN_VALIDITY_MILLIS = 15L * 60 * 1000;
+    // Catalog page size of the bandwidth probe of measureLink
+    private static final int BANDWIDTH_PROBE_PROJECTS = 500;
+    private static final String PROJECT_TYPES =
+            "processapp,app,casesolution,general,decision,agent,content,digitalworker,automation_srvc";
     
     private final String baseUrl;
     private final String authHeader;
-    private String csrfToken;
+    private final CsrfTokenManager csrfTokens;
     private final ObjectMapper objectMapper;
     private final CloseableHttpClient httpClient;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
 
     /**
      * Constructor that automatically obtains a CSRF token
      */
     public BAWApiClient(String baseUrl, String username, String password) throws IOException {
+        this(baseUrl, username, password, RetryPolicy.defaults(), DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Constructor that automatically obtains a CSRF token
+     *
+     * @param retryPolicy Decides which failed requests are retried and how long to wait between attempts
+     * @param maxConcurrency Upper bound of the adaptive limit of requests in flight to the host
+     */
+    public BAWApiClient(String baseUrl, String username, String password, RetryPolicy retryPolicy,
+                        int maxConcurrency) throws IOException {
         this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
         String auth = username + ":" + password;
         this.authHeader = "Basic " + Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
-        this.httpClient = createInsecureHttpClient();
+        this.httpClient = createInsecureHttpClient(Math.max(MAX_CONNECTIONS_PER_ROUTE, maxConcurrency));
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = CircuitBreaker.forUrl(this.baseUrl);
+        this.concurrencyLimiter = AdaptiveConcurrencyLimiter.forUrl(this.baseUrl, maxConcurrency);
         
         // Automatically obtain CSRF token
-        this.csrfToken = obtainCsrfToken();
+        this.csrfTokens = new CsrfTokenManager(
+                () -> executeWithBackoff(unused -> obtainCsrfToken(), null, RequestKind.METADATA),
+                CSRF_TOKEN_RENEW_AFTER_MILLIS);
+        csrfTokens.getToken();
         logger.info("Successfully obtained CSRF token");
     }
 
     /**
      * Create an HTTP client that trusts all SSL certificates (for self-signed certificates)
      */
-    private CloseableHttpClient createInsecureHttpClient() {
+    private CloseableHttpClient createInsecureHttpClient(int maxConnections) {
         try {
             // Create SSL context that trusts all certificates
             SSLContext sslContext = SSLContextBuilder.create()
@@ -94,11 +144,15 @@ public class BAWApiClient {
             // Create connection manager with the SSL socket factory
             HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
                     .setSSLSocketFactory(sslSocketFactory)
+                    .setMaxConnPerRoute(maxConnections)
+                    .setMaxConnTotal(maxConnections)
                     .build();
 
             // Build and return the HTTP client
+            // Retries are left to the retry policy
             return HttpClients.custom()
                     .setConnectionManager(connectionManager)
+                    .disableAutomaticRetries()
                     .build();
 
         } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
@@ -133,8 +187,8 @@ public class BAWApiClient {
             }
             
             if (response.getCode() != 201 && response.getCode() != 200) {
-                throw new IOException("Failed to obtain CSRF token. Status: " + response.getCode() +
-                                    ", Response: " + responseBody);
+                throw new HttpStatusException("Failed to obtain CSRF token. Status: " + response.getCode() +
+                                    ", Response: " + responseBody, response.getCode());
             }
             
             CsrfTokenResponse tokenResponse = objectMapper.readValue(responseBody, CsrfTokenResponse.class);
@@ -146,17 +200,41 @@ public class BAWApiClient {
         }
     }
 
+    /**
+     * How a request is treated by the retry policy and the concurrency limiter
+     */
+    private enum RequestKind {
+        // Small JSON requests, whose latency reflects the load of the host
+        METADATA(true, true),
+        // Bulk downloads, whose duration depends on the size of the snapshot
+        EXPORT(true, false),
+        // Bulk uploads, which must not be sent again blindly
+        IMPORT(false, false),
+        // Downloads read by a consumer while they arrive, which cannot be started over
+        STREAM(false, false);
+
+        final boolean idempotent;
+        final boolean measuresLoad;
+
+        RequestKind(boolean idempotent, boolean measuresLoad) {
+            this.idempotent = idempotent;
+            this.measuresLoad = measuresLoad;
+        }
+    }
+
     /**
      * Functional interface for HTTP request execution
      */
     @FunctionalInterface
     private interface HttpRequestExecutor<T> {
-        T execute() throws IOException;
+        T execute(String csrfToken) throws IOException;
     }
 
     /**
-     * Execute an HTTP request with automatic retry on 401 (CSRF token expiration)
-     * If a 401 is received, obtains a new CSRF token and retries the request once.
+     * Execute an idempotent HTTP request with automatic retry on 403 (CSRF token expiration) and on
+     * transient failures
+     * If a 403 is received, obtains a new CSRF token and retries the request once. Concurrent requests
+     * rejected with the same token share a single login.
      *
      * @param executor The function that executes the HTTP request
      * @param <T> The return type of the request
@@ -164,32 +242,118 @@ public class BAWApiClient {
      * @throws IOException If the request fails after retry
      */
     private <T> T executeWithRetry(HttpRequestExecutor<T> executor) throws IOException {
+        return executeWithRetry(executor, RequestKind.METADATA, 0);
+    }
+
+    /**
+     * Execute an HTTP request with automatic retry on 403, using a CSRF token that stays valid for at
+     * least the given time
+     *
+     * @param kind Decides whether the request is retried after a transient failure and whether its latency
+     *             tells the concurrency limiter how loaded the host is
+     */
+    private <T> T executeWithRetry(HttpRequestExecutor<T> executor, RequestKind kind,
+                                   long tokenValidForMillis) throws IOException {
+        String csrfToken = csrfTokens.getToken(tokenValidForMillis);
         try {
-            return executor.execute();
-        } catch (IOException e) {
-            // Check if this is a 401 error indicating CSRF token expiration
-            if (e.getMessage() != null && e.getMessage().contains("Status: 403")) {
-                logger.warn("Received 403 response, CSRF token may have expired. Obtaining new token and retrying...");
-                
-                // Obtain a new CSRF token
-                this.csrfToken = obtainCsrfToken();
-                logger.info("Successfully obtained new CSRF token, retrying request");
-                
-                // Retry the request with the new token
-                return executor.execute();
+            return executeWithBackoff(executor, csrfToken, kind);
+        } catch (HttpStatusException e) {
+            // Check if this is a 403 error indicating CSRF token expiration
+            if (e.getStatusCode() != 403) {
+                throw e;
             }
+            logger.warn("Received 403 response, CSRF token may have expired. Obtaining new token and retrying...");
+            
+            // Obtain a new CSRF token, unless another request already did
+            String newToken = csrfTokens.refresh(csrfToken);
+            logger.info("Using new CSRF token, retrying request");
             
-            // If not a 401 error, rethrow the original exception
-            throw e;
+            // Retry the request with the new token
+            return executeWithBackoff(executor, newToken, kind);
+        }
+    }
+
+    /**
+     * Execute an HTTP request through the circuit breaker and the concurrency limiter of the host, retrying
+     * transient failures of idempotent requests with exponential backoff
+     */
+    private <T> T executeWithBackoff(HttpRequestExecutor<T> executor, String csrfToken,
+                                     RequestKind kind) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            circuitBreaker.acquire();
+            try {
+                concurrencyLimiter.acquire();
+            } catch (InterruptedIOException e) {
+                // Nothing was sent, so there is no outcome to record
+                circuitBreaker.cancel();
+                throw e;
+            }
+            long start = System.currentTimeMillis();
+            long latencyMillis = -1;
+            AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.IGNORE;
+            boolean recorded = false;
+            IOException failure;
+            try {
+                requestCount.incrementAndGet();
+                T result = executor.execute(csrfToken);
+                latencyMillis = kind.measuresLoad ? System.currentTimeMillis() - start : -1;
+                outcome = AdaptiveConcurrencyLimiter.Outcome.SUCCESS;
+                circuitBreaker.recordSuccess();
+                recorded = true;
+                return result;
+            } catch (UploadCancelledException e) {
+                // The stream the upload was sent from failed, which says nothing about this host
+                circuitBreaker.cancel();
+                recorded = true;
+                throw e;
+            } catch (IOException e) {
+                outcome = loadOutcome(e);
+                recorded = true;
+                if (!retryPolicy.isRetryable(e)) {
+                    circuitBreaker.recordSuccess();
+                    throw e;
+                }
+                circuitBreaker.recordFailure();
+                if (!kind.idempotent || !retryPolicy.shouldRetry(e, attempt)) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                // Also reached by unexpected exceptions, e.g. a response that cannot be parsed
+                concurrencyLimiter.release(latencyMillis, outcome);
+                if (!recorded) {
+                    circuitBreaker.recordFailure();
+                }
+            }
+            logger.warn("Request to {} failed with a transient error (attempt {} of {}), retrying: {}",
+                       baseUrl, attempt, retryPolicy.getMaxAttempts(), failure.toString());
+            retryPolicy.backOff(attempt);
+        }
+    }
+
+    /**
+     * Classify a failed request for the concurrency limiter: timeouts and 5xx responses mean the host is
+     * overloaded, other errors say nothing about its load
+     */
+    static AdaptiveConcurrencyLimiter.Outcome loadOutcome(Throwable error) {
+        if (error instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException) error).getStatusCode();
+            return statusCode >= 500 || statusCode == 429
+                    ? AdaptiveConcurrencyLimiter.Outcome.OVERLOAD
+                    : AdaptiveConcurrencyLimiter.Outcome.IGNORE;
         }
+        return error instanceof SocketTimeoutException || error instanceof ConnectTimeoutException
+                ? AdaptiveConcurrencyLimiter.Outcome.OVERLOAD
+                : AdaptiveConcurrencyLimiter.Outcome.IGNORE;
     }
 
     /**
      * Get all projects from the repository
+     * Prefer {@link #projects()} for large repositories, which only holds one page in memory
      */
     public ProjectsResponse getProjects() throws IOException {
-        return executeWithRetry(() -> {
-            String url = baseUrl + "/dba/studio/repo/projects?type=processapp,app,casesolution,general,decision,agent,content,digitalworker,automation_srvc";
+        return executeWithRetry(csrfToken -> {
+            String url = baseUrl + "/dba/studio/repo/projects?type=" + PROJECT_TYPES;
             logger.info("Fetching projects from: {}", url);
             
             HttpGet request = new HttpGet(url);
@@ -200,18 +364,86 @@ public class BAWApiClient {
             }
             
             try (CloseableHttpResponse response = httpClient.execute(request)) {
-                String responseBody;
-                try {
-                    responseBody = EntityUtils.toString(response.getEntity());
-                } catch (org.apache.hc.core5.http.ParseException e) {
-                    throw new IOException("Failed to parse response", e);
+                if (response.getCode() != 200) {
+                    String responseBody;
+                    try {
+                        responseBody = EntityUtils.toString(response.getEntity());
+                    } catch (org.apache.hc.core5.http.ParseException e) {
+                        throw new IOException("Failed to parse error response", e);
+                    }
+                    throw new HttpStatusException("Failed to get projects. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
+                // Bind directly from the response stream instead of buffering the body as a String
+                try (InputStream inputStream = response.getEntity().getContent()) {
+                    return objectMapper.readValue(inputStream, ProjectsResponse.class);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lazily iterate over all projects in the repository, fetching DEFAULT_PAGE_SIZE projects per request
+     */
+    public Iterable<Project> projects() {
+        return projects(DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Lazily iterate over all projects in the repository using the offset and size query parameters
+     * Each page is parsed incrementally from the response stream, so peak memory is bounded by the page size.
+     * Iteration failures are reported as {@link java.io.UncheckedIOException}.
+     */
+    public Iterable<Project> projects(int pageSize) {
+        return () -> new ProjectIterator(this::getProjectsPage, pageSize);
+    }
+
+    /**
+     * Fetch one page of projects and parse it with the streaming JSON parser
+     */
+    private List<Project> getProjectsPage(int offset, int size) throws IOException {
+        return executeWithRetry(csrfToken -> {
+            String url = baseUrl + "/dba/studio/repo/projects?type=" + PROJECT_TYPES +
+                         "&offset=" + offset + "&size=" + size;
+            logger.debug("Fetching projects page: offset={}, size={}", offset, size);
+            
+            HttpGet request = new HttpGet(url);
+            request.setHeader("Authorization", authHeader);
+            request.setHeader("Accept", "application/json");
+            if (csrfToken != null && !csrfToken.isEmpty()) {
+                request.setHeader("BPMCSRFToken", csrfToken);
+            }
+            
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get projects. Status: " + response.getCode() + ", Response: " + responseBody);
+                    String responseBody;
+                    try {
+                        responseBody = EntityUtils.toString(response.getEntity());
+                    } catch (org.apache.hc.core5.http.ParseException e) {
+                        throw new IOException("Failed to parse error response", e);
+                    }
+                    throw new HttpStatusException("Failed to get projects. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
-                return objectMapper.readValue(responseBody, ProjectsResponse.class);
+                List<Project> page = new ArrayList<>(size);
+                try (InputStream inputStream = response.getEntity().getContent();
+                     JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        throw new IOException("Unexpected projects response, expected a JSON object");
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken value = parser.nextToken();
+                        if ("projects".equals(field) && value == JsonToken.START_ARRAY) {
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                page.add(objectMapper.readValue(parser, Project.class));
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+                return page;
             }
         });
     }
@@ -220,7 +452,7 @@ public class BAWApiClient {
      * Get a specific project by ID
      */
     public Project getProject(String projectId) throws IOException {
-        return executeWithRetry(() -> {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/dba/studio/repo/projects/" + projectId;
             logger.info("Fetching project: {}", projectId);
             
@@ -241,7 +473,7 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get project. Status: " + response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to get project. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
                 return objectMapper.readValue(responseBody, Project.class);
@@ -253,7 +485,7 @@ public class BAWApiClient {
      * Get all branches for a project
      */
     public BranchesResponse getBranches(String projectId) throws IOException {
-        return executeWithRetry(() -> {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/dba/studio/repo/projects/" + projectId + "/branches";
             logger.info("Fetching branches for project: {}", projectId);
             
@@ -274,7 +506,7 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get branches. Status: " + response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to get branches. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
                 return objectMapper.readValue(responseBody, BranchesResponse.class);
@@ -286,7 +518,7 @@ public class BAWApiClient {
      * Get all snapshots for a project branch
      */
     public SnapshotsResponse getSnapshots(String projectId, String branchName) throws IOException {
-        return executeWithRetry(() -> {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/dba/studio/repo/projects/" + projectId + "/branches/" + branchName + "/snapshots";
             logger.info("Fetching snapshots for project: {}, branch: {}", projectId, branchName);
             
@@ -307,7 +539,7 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get snapshots. Status: " + response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to get snapshots. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
                 return objectMapper.readValue(responseBody, SnapshotsResponse.class);
@@ -315,11 +547,63 @@ public class BAWApiClient {
         });
     }
 
+    /**
+     * Get the names of the snapshots on all branches of a project
+     * Much cheaper than listing the snapshots of every branch when only the names are needed
+     */
+    public ArtifactNamesResponse getSnapshotNames(String projectId) throws IOException {
+        return executeWithRetry(csrfToken -> {
+            String url = baseUrl + "/dba/studio/repo/projects/" + projectId + "/branches/snapshots/names";
+            logger.info("Fetching snapshot names for project: {}", projectId);
+            
+            HttpGet request = new HttpGet(url);
+            request.setHeader("Authorization", authHeader);
+            request.setHeader("Accept", "application/json");
+            request.setHeader("repositoryId", "platformRepo");
+            if (csrfToken != null && !csrfToken.isEmpty()) {
+                request.setHeader("BPMCSRFToken", csrfToken);
+            }
+            
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                String responseBody;
+                try {
+                    responseBody = EntityUtils.toString(response.getEntity());
+                } catch (org.apache.hc.core5.http.ParseException e) {
+                    throw new IOException("Failed to parse response", e);
+                }
+                
+                if (response.getCode() != 200) {
+                    throw new HttpStatusException("Failed to get snapshot names. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
+                }
+                
+                return objectMapper.readValue(responseBody, ArtifactNamesResponse.class);
+            }
+        });
+    }
+
     /**
      * Export a snapshot to a file
      */
     public File exportSnapshot(String projectId, String branchName, String snapshotName, File outputDir) throws IOException {
-        return executeWithRetry(() -> {
+        String fileName = projectId + "_" + snapshotName + ".twx";
+        return exportSnapshotToFile(projectId, branchName, snapshotName, new File(outputDir, fileName));
+    }
+
+    /**
+     * Export a snapshot to the given file
+     */
+    public File exportSnapshotToFile(String projectId, String branchName, String snapshotName, File outputFile) throws IOException {
+        return exportSnapshotToFile(projectId, branchName, snapshotName, outputFile, null);
+    }
+
+    /**
+     * Export a snapshot to the given file, feeding every byte written to the given digest
+     * The digest is reset before each attempt, so after a successful return it covers exactly the file content.
+     * The download is written to a temporary file in large blocks and renamed to the given file once complete.
+     */
+    public File exportSnapshotToFile(String projectId, String branchName, String snapshotName, File outputFile,
+                                     MessageDigest digest) throws IOException {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/dba/studio/repo/projects/" + projectId + "/branches/" + branchName +
                          "/snapshots/" + snapshotName + "/export";
             logger.info("Exporting snapshot: {} from project: {}, branch: {}", snapshotName, projectId, branchName);
@@ -340,36 +624,125 @@ public class BAWApiClient {
                     } catch (org.apache.hc.core5.http.ParseException e) {
                         throw new IOException("Failed to parse error response", e);
                     }
-                    throw new IOException("Failed to export snapshot. Status: " + response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to export snapshot. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
-                // Create output file
-                String fileName = projectId + "_" + snapshotName + ".twx";
-                File outputFile = new File(outputDir, fileName);
-                
-                // Write response to file
-                try (InputStream inputStream = response.getEntity().getContent();
-                     FileOutputStream outputStream = new FileOutputStream(outputFile)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = inputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                    }
+                // Write response to a temporary file, moved into place once complete
+                HttpEntity entity = response.getEntity();
+                try (InputStream inputStream = entity.getContent();
+                     ExportFileWriter writer = new ExportFileWriter(outputFile, entity.getContentLength(), digest)) {
+                    writer.writeAll(inputStream);
+                    writer.commit();
                 }
                 
                 logger.info("Exported snapshot to: {}", outputFile.getAbsolutePath());
                 return outputFile;
             }
-        });
+        }, RequestKind.EXPORT, 0);
+    }
+
+    /**
+     * Receives the body of an export while it downloads
+     */
+    @FunctionalInterface
+    public interface ExportConsumer<T> {
+        /**
+         * @param contentLength Size of the export, or -1 if the server did not announce it
+         */
+        T accept(InputStream content, long contentLength) throws IOException;
+    }
+
+    /**
+     * Export a snapshot and hand its body to the consumer while it downloads, without storing it
+     * The request is not retried, since the consumer has used part of the body by the time a transfer
+     * fails. Errors thrown by the consumer are passed on unchanged and do not count against this host,
+     * except for an upload that was cancelled because this download failed: its error counts against this host.
+     */
+    public <T> T exportSnapshotToConsumer(String projectId, String branchName, String snapshotName,
+                                          ExportConsumer<T> consumer) throws IOException {
+        AtomicReference<UploadCancelledException> cancelledUpload = new AtomicReference<>();
+        try {
+            return executeWithRetry(csrfToken -> {
+                String url = baseUrl + "/dba/studio/repo/projects/" + projectId + "/branches/" + branchName +
+                             "/snapshots/" + snapshotName + "/export";
+                logger.info("Streaming export of snapshot: {} from project: {}, branch: {}", snapshotName, projectId, branchName);
+                
+                HttpGet request = new HttpGet(url);
+                request.setHeader("Authorization", authHeader);
+                request.setHeader("repositoryId", "platformRepo");
+                request.setHeader("accept", "application/octet-stream");
+                if (csrfToken != null && !csrfToken.isEmpty()) {
+                    request.setHeader("BPMCSRFToken", csrfToken);
+                }
+                
+                try (CloseableHttpResponse response = httpClient.execute(request)) {
+                    if (response.getCode() != 200) {
+                        String responseBody;
+                        try {
+                            responseBody = EntityUtils.toString(response.getEntity());
+                        } catch (org.apache.hc.core5.http.ParseException e) {
+                            throw new IOException("Failed to parse error response", e);
+                        }
+                        throw new HttpStatusException("Failed to export snapshot. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
+                    }
+                    
+                    HttpEntity entity = response.getEntity();
+                    InputStream content = entity.getContent();
+                    try {
+                        T result = consumer.accept(content, entity.getContentLength());
+                        content.close();
+                        return result;
+                    } catch (UploadCancelledException e) {
+                        request.cancel();
+                        cancelledUpload.set(e);
+                        throw e.getSourceError();
+                    } catch (IOException e) {
+                        // Drop the connection rather than downloading the rest of a body nobody reads
+                        request.cancel();
+                        throw new ConsumerException(e);
+                    }
+                }
+            }, RequestKind.STREAM, 0);
+        } catch (ConsumerException e) {
+            throw (IOException) e.getCause();
+        } catch (IOException e) {
+            // Recorded against this host as the error of the download, reported as the cancelled upload
+            UploadCancelledException cancelled = cancelledUpload.get();
+            throw cancelled != null ? cancelled : e;
+        }
     }
 
     /**
      * Import a project from a file
+     * The request asks the server to confirm with 100 Continue before the file is streamed, so a rejected
+     * CSRF token or credentials are reported without uploading the file. Large files are only sent with a
+     * token that is not about to expire.
      */
     public Project importProject(File file) throws IOException {
-        return executeWithRetry(() -> {
+        return importProject(file.getName(), file.length(), () -> new FileBody(file));
+    }
+
+    /**
+     * Import a project from a stream, such as the body of an export that is still downloading
+     * The stream is read once, in large blocks, while the request is sent, so memory use does not depend on
+     * the size of the project. A request that the server rejects before the body is sent is repeated like a
+     * file import; once the stream has been read, the import cannot be sent again and fails instead.
+     * If reading the stream fails, the upload is cancelled with an {@link UploadCancelledException}, which
+     * does not count against this host.
+     *
+     * @param contentLength Number of bytes the stream delivers, or -1 if unknown
+     * @param fileName File name reported to the server
+     */
+    public Project importProject(InputStream content, long contentLength, String fileName) throws IOException {
+        AtomicBoolean sent = new AtomicBoolean();
+        return importProject(fileName, contentLength, () -> new OneShotStreamBody(content, fileName, contentLength, sent));
+    }
+
+    private Project importProject(String fileName, long length, Supplier<ContentBody> body) throws IOException {
+        long tokenValidFor = length < 0 || length >= LARGE_UPLOAD_BYTES ? LARGE_UPLOAD_TOKEN_VALIDITY_MILLIS : 0;
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/dba/studio/repo/projects/import";
-            logger.info("Importing project from file: {}", file.getName());
+            logger.info("Importing project from file: {}", fileName);
             
             HttpPost request = new HttpPost(url);
             request.setHeader("Authorization", authHeader);
@@ -378,10 +751,11 @@ public class BAWApiClient {
             }
             
             request.setHeader("repositoryId", "platformRepo");
+            request.setConfig(RequestConfig.custom().setExpectContinueEnabled(true).build());
             
             // Build multipart entity
             HttpEntity entity = MultipartEntityBuilder.create()
-                    .addPart("import_file", new FileBody(file))
+                    .addPart("import_file", body.get())
                     .build();
             request.setEntity(entity);
             
@@ -394,13 +768,13 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 201 && response.getCode() != 200) {
-                    throw new IOException("Failed to import project. Status: " + response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to import project. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
-                logger.info("Successfully imported project from: {}", file.getName());
+                logger.info("Successfully imported project from: {}", fileName);
                 return objectMapper.readValue(responseBody, Project.class);
             }
-        });
+        }, RequestKind.IMPORT, tokenValidFor);
     }
 
     /**
@@ -408,7 +782,7 @@ public class BAWApiClient {
      * Uses the Artifact Management API endpoint
      */
     public Snapshot getSnapshotWithDependencies(String containerAcronym, String versionAcronym) throws IOException {
-        return executeWithRetry(() -> {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/artmgt/std/bpm/containers/" + containerAcronym +
                          "/versions/" + versionAcronym + "?optional_parts=dependencies";
             logger.info("Fetching snapshot with dependencies: container={}, version={}", containerAcronym, versionAcronym);
@@ -429,8 +803,8 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get snapshot with dependencies. Status: " +
-                                        response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to get snapshot with dependencies. Status: " +
+                                        response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
                 return objectMapper.readValue(responseBody, Snapshot.class);
@@ -443,7 +817,7 @@ public class BAWApiClient {
      * This is more efficient than recursive calls as it returns the complete tree
      */
     public WhatUsedResponse getWhatUsed(String containerAcronym, String versionAcronym) throws IOException {
-        return executeWithRetry(() -> {
+        return executeWithRetry(csrfToken -> {
             String url = baseUrl + "/artmgt/std/bpm/containers/" + containerAcronym +
                          "/versions/" + versionAcronym + "/what_used?optional_parts=advanced_info";
             logger.info("Fetching dependency tree (what_used): container={}, version={}", containerAcronym, versionAcronym);
@@ -464,8 +838,8 @@ public class BAWApiClient {
                 }
                 
                 if (response.getCode() != 200) {
-                    throw new IOException("Failed to get what_used. Status: " +
-                                        response.getCode() + ", Response: " + responseBody);
+                    throw new HttpStatusException("Failed to get what_used. Status: " +
+                                        response.getCode() + ", Response: " + responseBody, response.getCode());
                 }
                 
                 return objectMapper.readValue(responseBody, WhatUsedResponse.class);
@@ -473,12 +847,267 @@ public class BAWApiClient {
         });
     }
 
+    /**
+     * Get the toolkits used by a whole branch using the branch-level what_used endpoint
+     * One call covers the branch instead of one call per snapshot on the branch
+     */
+    public WhatUsedResponse getBranchWhatUsed(String containerAcronym, String branchAcronym) throws IOException {
+        return executeWithRetry(csrfToken -> {
+            String url = baseUrl + "/artmgt/std/bpm/containers/" + containerAcronym +
+                         "/branches/" + branchAcronym + "/what_used?optional_parts=advanced_info";
+            logger.info("Fetching branch dependency tree (what_used): container={}, branch={}", containerAcronym, branchAcronym);
+            
+            HttpGet request = new HttpGet(url);
+            request.setHeader("Authorization", authHeader);
+            request.setHeader("Accept", "application/json");
+            if (csrfToken != null && !csrfToken.isEmpty()) {
+                request.setHeader("BPMCSRFToken", csrfToken);
+            }
+            
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                String responseBody;
+                try {
+                    responseBody = EntityUtils.toString(response.getEntity());
+                } catch (org.apache.hc.core5.http.ParseException e) {
+                    throw new IOException("Failed to parse response", e);
+                }
+                
+                if (response.getCode() != 200) {
+                    throw new HttpStatusException("Failed to get branch what_used. Status: " +
+                                        response.getCode() + ", Response: " + responseBody, response.getCode());
+                }
+                
+                return objectMapper.readValue(responseBody, WhatUsedResponse.class);
+            }
+        });
+    }
+
+    /**
+     * Get the time of the last change to any container of the repository
+     * The response body is returned as is; it is only compared with the body of an earlier call.
+     */
+    public String getContainersLastUpdate() throws IOException {
+        return getLastUpdate(baseUrl + "/artmgt/std/bpm/containers/last_update", "containers");
+    }
+
+    /**
+     * Get the time of the last change to the versions of the default track of a container
+     * The response body is returned as is; it is only compared with the body of an earlier call.
+     */
+    public String getVersionsLastUpdate(String containerAcronym) throws IOException {
+        return getLastUpdate(baseUrl + "/artmgt/std/bpm/containers/" + containerAcronym + "/versions/last_update",
+                             "container " + containerAcronym);
+    }
+
+    /**
+     * Get the time of the last change to the versions of one branch (track) of a container
+     * Without a branch the server only reports the default track.
+     */
+    public String getVersionsLastUpdate(String containerAcronym, String branchAcronym) throws IOException {
+        return getLastUpdate(baseUrl + "/artmgt/std/bpm/containers/" + containerAcronym + "/versions/last_update?branch=" +
+                             URLEncoder.encode(branchAcronym, StandardCharsets.UTF_8.name()),
+                             "branch " + branchAcronym + " of container " + containerAcronym);
+    }
+
+    private String getLastUpdate(String url, String description) throws IOException {
+        return executeWithRetry(csrfToken -> {
+            logger.debug("Fetching last update of {}", description);
+            
+            HttpGet request = new HttpGet(url);
+            request.setHeader("Authorization", authHeader);
+            request.setHeader("Accept", "application/json");
+            if (csrfToken != null && !csrfToken.isEmpty()) {
+                request.setHeader("BPMCSRFToken", csrfToken);
+            }
+            
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                String responseBody;
+                try {
+                    responseBody = EntityUtils.toString(response.getEntity());
+                } catch (org.apache.hc.core5.http.ParseException e) {
+                    throw new IOException("Failed to parse response", e);
+                }
+                
+                if (response.getCode() != 200) {
+                    throw new HttpStatusException("Failed to get last update of " + description + ". Status: " +
+                                        response.getCode() + ", Response: " + responseBody, response.getCode());
+                }
+                
+                return responseBody;
+            }
+        });
+    }
+
+    /**
+     * Measure the latency and bandwidth between this machine and the host without changing anything on it
+     * The latency is the median time of one-project catalog pages; the bandwidth is measured by reading one
+     * catalog page of at most {@value #BANDWIDTH_PROBE_PROJECTS} projects, net of one round trip. A probe of
+     * that size is still dominated by TCP slow start, so the bandwidth is only a rough lower bound of the
+     * throughput of a large export.
+     *
+     * @param latencySamples Number of small requests to time
+     */
+    public LinkMeasurement measureLink(int latencySamples) throws IOException {
+        long[] samples = new long[Math.max(1, latencySamples)];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            getProjectsPage(0, 1);
+            samples[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(samples);
+        long latencyMillis = samples[samples.length / 2];
+        
+        long start = System.nanoTime();
+        long bytes = executeWithRetry(csrfToken -> {
+            HttpGet request = new HttpGet(baseUrl + "/dba/studio/repo/projects?type=" + PROJECT_TYPES +
+                                          "&offset=0&size=" + BANDWIDTH_PROBE_PROJECTS);
+            request.setHeader("Authorization", authHeader);
+            request.setHeader("Accept", "application/json");
+            if (csrfToken != null && !csrfToken.isEmpty()) {
+                request.setHeader("BPMCSRFToken", csrfToken);
+            }
+            
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                if (response.getCode() != 200) {
+                    String responseBody;
+                    try {
+                        responseBody = EntityUtils.toString(response.getEntity());
+                    } catch (org.apache.hc.core5.http.ParseException e) {
+                        throw new IOException("Failed to parse error response", e);
+                    }
+                    throw new HttpStatusException("Failed to get projects. Status: " + response.getCode() + ", Response: " + responseBody, response.getCode());
+                }
+                long read = 0;
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream inputStream = response.getEntity().getContent()) {
+                    for (int n; (n = inputStream.read(buffer)) != -1; ) {
+                        read += n;
+                    }
+                }
+                return read;
+            }
+        });
+        long transferMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000 - latencyMillis);
+        
+        LinkMeasurement measurement = new LinkMeasurement(latencyMillis, bytes, bytes * 1000 / transferMillis);
+        logger.info("Measured link to {}: {} ({} KB probe)", baseUrl, measurement, bytes / 1024);
+        return measurement;
+    }
+
+    /**
+     * Number of API requests sent by this client so far (including retries and requests of a
+     * {@link BAWAsyncApiClient} sharing this client's session)
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Policy used to retry transient failures of this client's requests
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Base URL of the system this client talks to, without a trailing slash
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    String getAuthHeader() {
+        return authHeader;
+    }
+
+    ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * Current CSRF token, renewed first if it is due
+     */
+    String getCsrfToken() throws IOException {
+        return csrfTokens.getToken();
+    }
+
+    void recordRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * Replace a CSRF token that the server rejected, unless another caller already did so
+     */
+    String refreshCsrfToken(String rejectedToken) throws IOException {
+        return csrfTokens.refresh(rejectedToken);
+    }
+
+    /**
+     * Check whether both clients talk to the same host, and so share its concurrency limit
+     */
+    public boolean sharesHostWith(BAWApiClient other) {
+        return concurrencyLimiter == other.concurrencyLimiter;
+    }
+
     /**
      * Close the HTTP client
      */
     public void close() throws IOException {
         httpClient.close();
     }
+
+    /**
+     * Carries an error of an export consumer through the retry loop of the exporting client
+     */
+    private static class ConsumerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConsumerException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Multipart body that copies a stream in large blocks and refuses to be written a second time
+     */
+    private static class OneShotStreamBody extends InputStreamBody {
+        private final AtomicBoolean sent;
+
+        OneShotStreamBody(InputStream content, String fileName, long contentLength, AtomicBoolean sent) {
+            super(content, ContentType.DEFAULT_BINARY, fileName, contentLength);
+            this.sent = sent;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (!sent.compareAndSet(false, true)) {
+                throw new IOException("The content of " + getFilename() + " was already sent and cannot be sent again");
+            }
+            byte[] block = new byte[ExportFileWriter.BLOCK_SIZE];
+            InputStream content = getInputStream();
+            int bytesRead;
+            while ((bytesRead = read(content, block)) != -1) {
+                out.write(block, 0, bytesRead);
+            }
+        }
+
+        private int read(InputStream content, byte[] block) throws UploadCancelledException {
+            try {
+                return content.read(block);
+            } catch (IOException e) {
+                throw new UploadCancelledException("Upload of " + getFilename() + " was cancelled because its content failed: " +
+                                                   e.getMessage(), e);
+            }
+        }
+    }
 }
 
 // Made with Bob
@@ -0,0 +1,446 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import com.ibm.baw.migrator.model.*;
+import org.apache.hc.client5.http.async.methods.*;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.nio.AsyncClientConnectionManager;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.hc.client5.http.ssl.TrustAllStrategy;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.ssl.SSLContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking variant of the metadata requests of {@link BAWApiClient}, built on the httpclient5 async client
+ * All methods return immediately with a CompletableFuture; a handful of I/O reactor threads serve every
+ * request in flight. At most {@code maxInFlight} requests are sent to the host at the same time, further
+ * requests wait in a queue without holding a thread. The client shares the session (credentials, CSRF token,
+ * request counter, retry policy and circuit breaker) of the blocking client it is created from. Like the
+ * blocking client, it retries a request once with a new CSRF token on a 403 response and retries transient
+ * failures with backoff; the waits are scheduled rather than slept.
+ */
+public class BAWAsyncApiClient {
+    private static final Logger logger = LoggerFactory.getLogger(BAWAsyncApiClient.class);
+    private static final int IO_THREADS = 2;
+
+    private final BAWApiClient session;
+    private final String baseUrl;
+    private final CloseableHttpAsyncClient httpClient;
+    private final InFlightLimiter limiter;
+    // Runs the CSRF token renewal, which has no non-blocking form
+    private final ExecutorService blockingExecutor;
+    // Starts retries and requests that wait for the circuit breaker once their delay has passed
+    private final ScheduledExecutorService retryScheduler;
+
+    /**
+     * Create an async client for the same system and session as the given blocking client
+     *
+     * @param session The blocking client whose credentials and CSRF token are used
+     * @param maxInFlight Maximum number of requests sent to the host at the same time
+     */
+    public BAWAsyncApiClient(BAWApiClient session, int maxInFlight) throws IOException {
+        this.session = session;
+        this.baseUrl = session.getBaseUrl();
+        this.limiter = new InFlightLimiter(Math.max(1, maxInFlight));
+        this.httpClient = createInsecureHttpClient(Math.max(1, maxInFlight));
+        this.httpClient.start();
+        this.blockingExecutor = Executors.newCachedThreadPool(daemonThreadFactory("async-client-blocking"));
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("async-client-retry"));
+        logger.info("Started async API client for {} with at most {} requests in flight", baseUrl, maxInFlight);
+    }
+
+    /**
+     * Create an async HTTP client that trusts all SSL certificates (for self-signed certificates)
+     */
+    private static CloseableHttpAsyncClient createInsecureHttpClient(int maxConnections) throws IOException {
+        SSLContext sslContext;
+        try {
+            sslContext = SSLContextBuilder.create()
+                    .loadTrustMaterial(new TrustAllStrategy())
+                    .build();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to create SSL context for async client", e);
+        }
+
+        AsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setTlsStrategy(ClientTlsStrategyBuilder.create()
+                        .setSslContext(sslContext)
+                        .setHostnameVerifier(NoopHostnameVerifier.INSTANCE)
+                        .build())
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
+                .build();
+
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(IO_THREADS).build())
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    /**
+     * Get all branches for a project
+     */
+    public CompletableFuture<BranchesResponse> getBranches(String projectId) {
+        return getJson("/dba/studio/repo/projects/" + projectId + "/branches", true,
+                       BranchesResponse.class, "get branches");
+    }
+
+    /**
+     * Get all snapshots for a project branch
+     */
+    public CompletableFuture<SnapshotsResponse> getSnapshots(String projectId, String branchName) {
+        return getJson("/dba/studio/repo/projects/" + projectId + "/branches/" + branchName + "/snapshots", true,
+                       SnapshotsResponse.class, "get snapshots");
+    }
+
+    /**
+     * Get snapshot details with dependencies
+     */
+    public CompletableFuture<Snapshot> getSnapshotWithDependencies(String containerAcronym, String versionAcronym) {
+        return getJson("/artmgt/std/bpm/containers/" + containerAcronym + "/versions/" + versionAcronym +
+                       "?optional_parts=dependencies", false, Snapshot.class, "get snapshot with dependencies");
+    }
+
+    /**
+     * Get the full dependency tree for a snapshot using the what_used endpoint
+     */
+    public CompletableFuture<WhatUsedResponse> getWhatUsed(String containerAcronym, String versionAcronym) {
+        return getJson("/artmgt/std/bpm/containers/" + containerAcronym + "/versions/" + versionAcronym +
+                       "/what_used?optional_parts=advanced_info", false, WhatUsedResponse.class, "get what_used");
+    }
+
+    /**
+     * Get the toolkits used by a whole branch using the branch-level what_used endpoint
+     */
+    public CompletableFuture<WhatUsedResponse> getBranchWhatUsed(String containerAcronym, String branchAcronym) {
+        return getJson("/artmgt/std/bpm/containers/" + containerAcronym + "/branches/" + branchAcronym +
+                       "/what_used?optional_parts=advanced_info", false, WhatUsedResponse.class, "get branch what_used");
+    }
+
+    /**
+     * Get the time of the last change to the versions of the default track of a container
+     * The response body is returned as is, like {@link BAWApiClient#getVersionsLastUpdate(String)}.
+     */
+    public CompletableFuture<String> getVersionsLastUpdate(String containerAcronym) {
+        return get("/artmgt/std/bpm/containers/" + containerAcronym + "/versions/last_update", false,
+                   "get last update of container " + containerAcronym, SimpleHttpResponse::getBodyText);
+    }
+
+    /**
+     * Get the time of the last change to the versions of one branch (track) of a container
+     */
+    public CompletableFuture<String> getVersionsLastUpdate(String containerAcronym, String branchAcronym) {
+        String branch;
+        try {
+            branch = URLEncoder.encode(branchAcronym, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        return get("/artmgt/std/bpm/containers/" + containerAcronym + "/versions/last_update?branch=" + branch, false,
+                   "get last update of branch " + branchAcronym + " of container " + containerAcronym,
+                   SimpleHttpResponse::getBodyText);
+    }
+
+    /**
+     * Stop the I/O reactor and the helper threads
+     */
+    public void close() {
+        httpClient.close(CloseMode.GRACEFUL);
+        blockingExecutor.shutdownNow();
+        retryScheduler.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> getJson(String path, boolean repositoryHeader, Class<T> type, String action) {
+        return get(path, repositoryHeader, action, response -> {
+            try {
+                return session.getObjectMapper().readValue(response.getBodyBytes(), type);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Send a GET request and read its response if the status is 200
+     */
+    private <T> CompletableFuture<T> get(String path, boolean repositoryHeader, String action,
+                                         Function<SimpleHttpResponse, T> reader) {
+        String url = baseUrl + path;
+        return withCsrfRetry(csrfToken -> {
+            logger.debug("Async request to {}: {}", action, url);
+            SimpleHttpRequest request = newRequest(SimpleRequestBuilder.get(url), repositoryHeader, csrfToken)
+                    .setHeader("Accept", "application/json")
+                    .build();
+            return send(request, SimpleResponseConsumer::create).thenApply(response -> {
+                if (response.getCode() != 200) {
+                    throw new CompletionException(new HttpStatusException("Failed to " + action + ". Status: " +
+                            response.getCode() + ", Response: " + response.getBodyText(), response.getCode()));
+                }
+                return reader.apply(response);
+            });
+        });
+    }
+
+    private SimpleRequestBuilder newRequest(SimpleRequestBuilder builder, boolean repositoryHeader, String csrfToken) {
+        builder.setHeader("Authorization", session.getAuthHeader());
+        if (repositoryHeader) {
+            builder.setHeader("repositoryId", "platformRepo");
+        }
+        if (csrfToken != null && !csrfToken.isEmpty()) {
+            builder.setHeader("BPMCSRFToken", csrfToken);
+        }
+        return builder;
+    }
+
+    /**
+     * Send a request once a slot of this client and a slot of the host's adaptive limit are free; both slots
+     * are released when the response has been consumed
+     */
+    private <T> CompletableFuture<T> send(SimpleHttpRequest request, Supplier<AsyncResponseConsumer<T>> consumer) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AdaptiveConcurrencyLimiter hostLimiter = session.getConcurrencyLimiter();
+        limiter.submit(() -> hostLimiter.submit(() -> {
+            session.recordRequest();
+            long start = System.currentTimeMillis();
+            try {
+                httpClient.execute(SimpleRequestProducer.create(request), consumer.get(), new FutureCallback<T>() {
+                    @Override
+                    public void completed(T value) {
+                        hostLimiter.release(System.currentTimeMillis() - start, loadOutcome(value));
+                        limiter.release();
+                        result.complete(value);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        hostLimiter.release(-1, BAWApiClient.loadOutcome(e));
+                        limiter.release();
+                        result.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        hostLimiter.release(-1, AdaptiveConcurrencyLimiter.Outcome.IGNORE);
+                        limiter.release();
+                        result.cancel(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                hostLimiter.release(-1, AdaptiveConcurrencyLimiter.Outcome.IGNORE);
+                limiter.release();
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * Classify a response received in full; error statuses of JSON requests are only raised after this
+     */
+    private static AdaptiveConcurrencyLimiter.Outcome loadOutcome(Object response) {
+        if (response instanceof HttpResponse) {
+            int statusCode = ((HttpResponse) response).getCode();
+            if (statusCode >= 500 || statusCode == 429) {
+                return AdaptiveConcurrencyLimiter.Outcome.OVERLOAD;
+            }
+        }
+        return AdaptiveConcurrencyLimiter.Outcome.SUCCESS;
+    }
+
+    /**
+     * Run a request and, if it fails with a 403 (CSRF token expired), renew the token and run it once more
+     * The renewal login blocks, so it runs on a helper thread rather than on the I/O reactor.
+     */
+    private <T> CompletableFuture<T> withCsrfRetry(Function<String, CompletableFuture<T>> attempt) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        String tokenUsed;
+        try {
+            // Only blocks when the token is due for proactive renewal
+            tokenUsed = session.getCsrfToken();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        
+        withBackoff(() -> attempt.apply(tokenUsed)).whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            if (!HttpStatusException.hasStatus(cause, 403)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            logger.warn("Received 403 response, CSRF token may have expired. Obtaining new token and retrying...");
+            CompletableFuture
+                    .supplyAsync(() -> {
+                        try {
+                            return session.refreshCsrfToken(tokenUsed);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, blockingExecutor)
+                    .thenCompose(newToken -> withBackoff(() -> attempt.apply(newToken)))
+                    .whenComplete((retryValue, retryError) -> {
+                        if (retryError == null) {
+                            result.complete(retryValue);
+                        } else {
+                            result.completeExceptionally(unwrap(retryError));
+                        }
+                    });
+        });
+        return result;
+    }
+
+    /**
+     * Run a request through the circuit breaker of the host, retrying transient failures with backoff
+     */
+    private <T> CompletableFuture<T> withBackoff(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attemptWithBackoff(request, 1, result);
+        return result;
+    }
+
+    private <T> void attemptWithBackoff(Supplier<CompletableFuture<T>> request, int attempt, CompletableFuture<T> result) {
+        CircuitBreaker circuitBreaker = session.getCircuitBreaker();
+        long pause = circuitBreaker.tryAcquire();
+        if (pause > 0) {
+            retryScheduler.schedule(() -> attemptWithBackoff(request, attempt, result), pause, TimeUnit.MILLISECONDS);
+            return;
+        }
+        
+        CompletableFuture<T> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            circuitBreaker.recordFailure();
+            result.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((value, error) -> {
+            if (error == null) {
+                circuitBreaker.recordSuccess();
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            if (!(cause instanceof IOException)) {
+                // Unexpected, e.g. a response that cannot be parsed; counted against the host but not retried
+                circuitBreaker.recordFailure();
+                result.completeExceptionally(cause);
+                return;
+            }
+            RetryPolicy retryPolicy = session.getRetryPolicy();
+            if (!retryPolicy.isRetryable((IOException) cause)) {
+                circuitBreaker.recordSuccess();
+                result.completeExceptionally(cause);
+                return;
+            }
+            circuitBreaker.recordFailure();
+            if (!retryPolicy.shouldRetry((IOException) cause, attempt)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            logger.warn("Async request to {} failed with a transient error (attempt {} of {}), retrying: {}",
+                       baseUrl, attempt, retryPolicy.getMaxAttempts(), cause.toString());
+            retryScheduler.schedule(() -> attemptWithBackoff(request, attempt + 1, result),
+                                    retryPolicy.getDelayMillis(attempt), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Bounds the number of requests in flight without blocking the caller
+     * Requests beyond the limit are queued and started as earlier requests complete.
+     */
+    private static class InFlightLimiter {
+        private final int maxInFlight;
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight = 0;
+
+        InFlightLimiter(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+
+        void submit(Runnable start) {
+            synchronized (this) {
+                if (inFlight >= maxInFlight) {
+                    waiting.add(start);
+                    return;
+                }
+                inFlight++;
+            }
+            start.run();
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            // The slot passes directly to the next waiting request
+            next.run();
+        }
+    }
+
+}
+
+// Made with Bob
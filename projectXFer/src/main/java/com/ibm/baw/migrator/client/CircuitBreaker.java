@@ -0,0 +1,130 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pauses all traffic to a host after repeated transient failures
+ * After the failure threshold is reached the circuit opens and requests wait for the pause to end. Then a
+ * single probe request is let through: if it succeeds the circuit closes, otherwise it opens again. All
+ * clients of the same host share one breaker.
+ */
+class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30000;
+    // How often requests check whether a running probe has finished
+    private static final long PROBE_POLL_MILLIS = 200;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String host;
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean probing = false;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Get the breaker shared by all clients of the host of the given URL
+     */
+    static CircuitBreaker forUrl(String url) {
+        URI uri = URI.create(url);
+        String host = uri.getHost() != null ? uri.getHost() + ":" + uri.getPort() : url;
+        return BREAKERS.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * Get permission to send a request without waiting
+     *
+     * @return 0 if the request may be sent now, otherwise the time to wait before asking again
+     */
+    synchronized long tryAcquire() {
+        if (consecutiveFailures < FAILURE_THRESHOLD) {
+            return 0;
+        }
+        long remaining = openUntil - System.currentTimeMillis();
+        if (remaining > 0) {
+            return remaining;
+        }
+        if (!probing) {
+            probing = true;
+            logger.info("Sending probe request to {} to check whether it has recovered", host);
+            return 0;
+        }
+        return PROBE_POLL_MILLIS;
+    }
+
+    /**
+     * Wait until a request may be sent to the host
+     */
+    synchronized void acquire() throws InterruptedIOException {
+        long pause;
+        while ((pause = tryAcquire()) > 0) {
+            try {
+                wait(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + host + " to recover");
+            }
+        }
+    }
+
+    /**
+     * Record that the host answered a request, even if the answer was an error that is not transient
+     */
+    synchronized void recordSuccess() {
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            logger.info("{} has recovered, resuming traffic", host);
+        }
+        consecutiveFailures = 0;
+        probing = false;
+        notifyAll();
+    }
+
+    /**
+     * Give back a permission from {@link #acquire()} that was not used to send a request
+     */
+    synchronized void cancel() {
+        probing = false;
+        notifyAll();
+    }
+
+    /**
+     * Record a transient failure of a request to the host
+     */
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (probing || consecutiveFailures == FAILURE_THRESHOLD) {
+            openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+            logger.warn("{} failed {} requests in a row, pausing all traffic to it for {} seconds",
+                       host, consecutiveFailures, OPEN_MILLIS / 1000);
+        }
+        probing = false;
+        notifyAll();
+    }
+}
+
+// Made with Bob
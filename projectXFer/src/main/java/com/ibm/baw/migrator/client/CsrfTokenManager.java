@@ -0,0 +1,148 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Thread-safe holder of the CSRF token of one system
+ * Only one login is in progress at any time: callers that need a new token while a login is running
+ * wait for it and share its result. The token is renewed proactively once it is older than the renewal
+ * age, so long runs do not have to fail a request on an expired token before renewing it.
+ */
+class CsrfTokenManager {
+    private static final Logger logger = LoggerFactory.getLogger(CsrfTokenManager.class);
+
+    /**
+     * Performs the login that issues a new token
+     */
+    @FunctionalInterface
+    interface TokenFetcher {
+        String fetch() throws IOException;
+    }
+
+    private final TokenFetcher fetcher;
+    private final long renewAfterMillis;
+    private volatile Token current;
+    // Login in progress, shared by all callers waiting for a new token (guarded by this)
+    private CompletableFuture<Token> pendingLogin;
+
+    /**
+     * @param fetcher Performs the login
+     * @param renewAfterMillis Age after which the token is renewed before it is used again
+     */
+    CsrfTokenManager(TokenFetcher fetcher, long renewAfterMillis) {
+        this.fetcher = fetcher;
+        this.renewAfterMillis = renewAfterMillis;
+    }
+
+    /**
+     * Get a valid token, logging in first if there is none yet or the current one is due for renewal
+     */
+    String getToken() throws IOException {
+        return getToken(0);
+    }
+
+    /**
+     * Get a token that stays valid for at least the given time, renewing the current one if it would not
+     * Long requests such as large uploads use this so they are not rejected after their body was sent.
+     *
+     * @param validForMillis Time the token has to remain valid for
+     */
+    String getToken(long validForMillis) throws IOException {
+        Token token = current;
+        if (token != null && !isDue(token, validForMillis)) {
+            return token.value;
+        }
+        if (token != null) {
+            logger.info("CSRF token is {} minutes old, renewing it", (System.currentTimeMillis() - token.obtainedAt) / 60000);
+        }
+        return refresh(token != null ? token.value : null, validForMillis);
+    }
+
+    /**
+     * Replace a token that the server rejected
+     * If another caller already replaced it, the newer token is returned without logging in again.
+     *
+     * @param rejectedToken The token that was sent with the rejected request
+     */
+    String refresh(String rejectedToken) throws IOException {
+        return refresh(rejectedToken, 0);
+    }
+
+    private String refresh(String rejectedToken, long validForMillis) throws IOException {
+        CompletableFuture<Token> login;
+        boolean leader = false;
+        synchronized (this) {
+            Token token = current;
+            if (token != null && !token.value.equals(rejectedToken) && !isDue(token, validForMillis)) {
+                return token.value;
+            }
+            if (pendingLogin == null) {
+                pendingLogin = new CompletableFuture<>();
+                leader = true;
+            }
+            login = pendingLogin;
+        }
+
+        if (leader) {
+            try {
+                Token token = new Token(fetcher.fetch(), System.currentTimeMillis());
+                current = token;
+                login.complete(token);
+                return token.value;
+            } catch (IOException | RuntimeException e) {
+                login.completeExceptionally(e);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    pendingLogin = null;
+                }
+            }
+        }
+
+        try {
+            return login.get().value;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for CSRF token");
+        }
+    }
+
+    private boolean isDue(Token token, long validForMillis) {
+        return System.currentTimeMillis() - token.obtainedAt + validForMillis >= renewAfterMillis;
+    }
+
+    private static class Token {
+        final String value;
+        final long obtainedAt;
+
+        Token(String value, long obtainedAt) {
+            this.value = value;
+            this.obtainedAt = obtainedAt;
+        }
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,147 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * Writes a downloaded export to a temporary file next to its destination and moves it into place when complete
+ * The file is sized up front when the length of the download is known and written through a FileChannel in
+ * large blocks. It only appears under its final name once all bytes have arrived, so a failed download never
+ * leaves a partial export behind. The throughput is logged on completion.
+ */
+class ExportFileWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExportFileWriter.class);
+
+    // Reads this large bypass the 8 KB session buffer of the HTTP client
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".part";
+
+    private final File target;
+    private final File tempFile;
+    private final long expectedLength;
+    private final MessageDigest digest;
+    private final FileChannel channel;
+    private final long startNanos = System.nanoTime();
+    private long written = 0;
+    private boolean committed = false;
+
+    /**
+     * @param target Final location of the export
+     * @param expectedLength Content length of the download, or -1 if unknown
+     * @param digest If not null, reset and then updated with every byte written
+     */
+    ExportFileWriter(File target, long expectedLength, MessageDigest digest) throws IOException {
+        this.target = target;
+        this.tempFile = new File(target.getAbsoluteFile().getParentFile(), target.getName() + TEMP_SUFFIX);
+        this.expectedLength = expectedLength;
+        this.digest = digest;
+        if (digest != null) {
+            digest.reset();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(Math.max(0, expectedLength));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Append the remaining bytes of the buffer to the file
+     */
+    void write(ByteBuffer src) throws IOException {
+        if (digest != null) {
+            digest.update(src.duplicate());
+        }
+        while (src.hasRemaining()) {
+            written += channel.write(src, written);
+        }
+    }
+
+    /**
+     * Append everything the stream delivers, in blocks of {@link #BLOCK_SIZE}
+     */
+    void writeAll(InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(block)) != -1) {
+            write(ByteBuffer.wrap(block, 0, bytesRead));
+        }
+    }
+
+    /**
+     * Move the completed file to its final location
+     *
+     * @throws IOException If fewer bytes arrived than announced
+     */
+    File commit() throws IOException {
+        if (expectedLength >= 0 && written != expectedLength) {
+            throw new IOException("Export " + target.getName() + " is incomplete: received " + written +
+                                  " of " + expectedLength + " bytes");
+        }
+        channel.truncate(written);
+        channel.close();
+        move(tempFile, target);
+        committed = true;
+
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        logger.info("Downloaded {} MB to {} in {} s ({} MB/s)", String.format("%.1f", written / 1048576.0),
+                   target.getName(), String.format("%.1f", seconds), String.format("%.1f", written / 1048576.0 / seconds));
+        return target;
+    }
+
+    /**
+     * Discard the temporary file unless the export was committed
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close export file: {}", tempFile.getAbsolutePath(), e);
+        }
+        if (!committed && tempFile.exists() && !tempFile.delete()) {
+            logger.warn("Failed to delete incomplete export: {}", tempFile.getAbsolutePath());
+        }
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
+
+// Made with Bob
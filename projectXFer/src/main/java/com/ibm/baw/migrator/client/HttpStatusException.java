@@ -0,0 +1,53 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import java.io.IOException;
+
+/**
+ * A request that the server answered with an unexpected HTTP status
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpStatusException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Check whether an error is an HTTP response with one of the given status codes
+     */
+    public static boolean hasStatus(Throwable error, int... statusCodes) {
+        if (!(error instanceof HttpStatusException)) {
+            return false;
+        }
+        int statusCode = ((HttpStatusException) error).getStatusCode();
+        for (int code : statusCodes) {
+            if (code == statusCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+// Made with Bob
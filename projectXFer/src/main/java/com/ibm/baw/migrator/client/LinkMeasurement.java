@@ -0,0 +1,66 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+/**
+ * Round-trip latency and bandwidth measured between this machine and a host
+ * The bandwidth is measured on a download of one bounded page of the project catalog. A download that
+ * small is dominated by latency and TCP slow start, so the bandwidth is a rough lower bound of the
+ * throughput of a large export: it is underestimated rather than overestimated.
+ */
+public class LinkMeasurement {
+    private final long latencyMillis;
+    private final long probeBytes;
+    private final long bytesPerSecond;
+
+    public LinkMeasurement(long latencyMillis, long probeBytes, long bytesPerSecond) {
+        this.latencyMillis = latencyMillis;
+        this.probeBytes = probeBytes;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+    }
+
+    /**
+     * Median round-trip time of a small request
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Number of bytes downloaded to measure the bandwidth
+     */
+    public long getProbeBytes() {
+        return probeBytes;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Estimated time of the given number of requests transferring the given number of bytes in total
+     */
+    public long estimateMillis(long requests, long bytes) {
+        return requests * latencyMillis + bytes * 1000 / bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latencyMillis + " ms, bandwidth at least " +
+               String.format("%.1f", bytesPerSecond / (1024.0 * 1024.0)) + " MB/s (rough lower bound)";
+    }
+}
+
+// Made with Bob
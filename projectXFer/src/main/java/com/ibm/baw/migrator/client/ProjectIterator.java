@@ -0,0 +1,106 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import com.ibm.baw.migrator.model.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily iterates over the project catalog one page at a time
+ * Only the current page is held in memory. Failures while fetching a page are reported as
+ * UncheckedIOException since Iterator methods cannot throw checked exceptions.
+ */
+public class ProjectIterator implements Iterator<Project> {
+    private static final Logger logger = LoggerFactory.getLogger(ProjectIterator.class);
+
+    /**
+     * Fetches one page of projects
+     */
+    @FunctionalInterface
+    interface PageFetcher {
+        List<Project> fetch(int offset, int size) throws IOException;
+    }
+
+    private final PageFetcher fetcher;
+    private final int pageSize;
+    private int offset = 0;
+    private List<Project> page;
+    private int position = 0;
+    private boolean lastPage = false;
+    private String previousFirstId;
+
+    ProjectIterator(PageFetcher fetcher, int pageSize) {
+        this.fetcher = fetcher;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && position < page.size()) {
+            return true;
+        }
+        if (lastPage) {
+            return false;
+        }
+        fetchNextPage();
+        return position < page.size();
+    }
+
+    @Override
+    public Project next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(position++);
+    }
+
+    private void fetchNextPage() {
+        try {
+            page = fetcher.fetch(offset, pageSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+        offset += page.size();
+
+        // A short page is the last one. A page larger than requested, or a repeat of the previous page,
+        // means the server ignores offset/size and has already returned everything.
+        if (page.size() < pageSize) {
+            lastPage = true;
+        } else if (page.size() > pageSize) {
+            logger.debug("Server returned {} projects for a page of {}, assuming pagination is not supported",
+                        page.size(), pageSize);
+            lastPage = true;
+        } else {
+            String firstId = page.get(0).getId();
+            if (firstId != null && firstId.equals(previousFirstId)) {
+                logger.warn("Server returned the same page of projects twice, assuming pagination is not supported");
+                page = Collections.emptyList();
+                lastPage = true;
+            }
+            previousFirstId = firstId;
+        }
+    }
+}
+
+// Made with Bob
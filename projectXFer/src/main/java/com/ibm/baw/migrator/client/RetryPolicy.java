@@ -0,0 +1,114 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http.NoHttpResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed requests are retried and how long to wait before each retry
+ * Only transient failures are retried: gateway and overload responses (429, 502, 503, 504), connection
+ * resets, closed connections and timeouts. The delay grows exponentially from the initial delay up to
+ * the maximum delay; half of it is random, so clients that failed together do not retry together.
+ */
+public class RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 2000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+    private static final int[] TRANSIENT_STATUS_CODES = {429, 502, 503, 504};
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxAttempts Total number of attempts of a request, including the first one
+     * @param initialDelayMillis Delay before the first retry
+     * @param maxDelayMillis Upper bound of the delay between two attempts
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelayMillis = Math.max(0, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    }
+
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Check whether a failure is transient, so that the same request may succeed when it is sent again
+     */
+    public boolean isRetryable(IOException error) {
+        if (error instanceof HttpStatusException) {
+            return HttpStatusException.hasStatus(error, TRANSIENT_STATUS_CODES);
+        }
+        return error instanceof SocketTimeoutException
+                || error instanceof ConnectTimeoutException
+                || error instanceof SocketException
+                || error instanceof NoHttpResponseException
+                || error instanceof ConnectionClosedException;
+    }
+
+    /**
+     * Check whether another attempt is allowed after the given failed attempt
+     *
+     * @param attempt Number of the attempt that failed, starting at 1
+     */
+    public boolean shouldRetry(IOException error, int attempt) {
+        return attempt < maxAttempts && isRetryable(error);
+    }
+
+    /**
+     * Delay before the attempt that follows the given failed attempt
+     *
+     * @param attempt Number of the attempt that failed, starting at 1
+     */
+    public long getDelayMillis(int attempt) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < attempt && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    /**
+     * Sleep for the delay that follows the given failed attempt
+     */
+    public void backOff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(getDelayMillis(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
+
+// Made with Bob
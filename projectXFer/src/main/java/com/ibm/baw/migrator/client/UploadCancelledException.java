@@ -0,0 +1,38 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.client;
+
+import java.io.IOException;
+
+/**
+ * An upload that was cancelled because the stream it was sent from failed
+ * The cause is the error of the stream; the host the upload was sent to is not to blame.
+ */
+public class UploadCancelledException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UploadCancelledException(String message, IOException cause) {
+        super(message, cause);
+    }
+
+    /**
+     * The error of the stream the upload was sent from
+     */
+    public IOException getSourceError() {
+        return (IOException) getCause();
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,38 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/**
+ * Response model for the lightweight names endpoints (project, branch or snapshot names)
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ArtifactNamesResponse {
+    @JsonProperty("artifact_names")
+    private List<String> artifactNames;
+
+    public List<String> getArtifactNames() {
+        return artifactNames;
+    }
+
+    public void setArtifactNames(List<String> artifactNames) {
+        this.artifactNames = artifactNames;
+    }
+}
+
+// Made with Bob
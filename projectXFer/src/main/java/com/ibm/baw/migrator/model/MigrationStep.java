@@ -0,0 +1,68 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.model;
+
+/**
+ * A single unit of migration work: one snapshot of one project on one branch
+ * Steps that share an ordering key must be imported in the order they were planned
+ */
+public class MigrationStep {
+    private final Project project;
+    private final Snapshot snapshot;
+    private final String branchName;
+
+    public MigrationStep(Project project, Snapshot snapshot, String branchName) {
+        this.project = project;
+        this.snapshot = snapshot;
+        this.branchName = branchName;
+    }
+
+    public Project getProject() {
+        return project;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public String getBranchName() {
+        return branchName;
+    }
+
+    /**
+     * Steps of the same project are imported strictly in order; steps of different projects may overlap
+     */
+    public String getOrderingKey() {
+        return project.getId();
+    }
+
+    /**
+     * Unique key identifying this step (project, branch and snapshot)
+     */
+    public String getKey() {
+        return project.getId() + "|" + branchName + "|" + snapshot.getName();
+    }
+
+    @Override
+    public String toString() {
+        return "MigrationStep{" +
+                "project=" + project.getDisplayName() +
+                ", branch='" + branchName + '\'' +
+                ", snapshot='" + snapshot.getName() + '\'' +
+                '}';
+    }
+}
+
+// Made with Bob
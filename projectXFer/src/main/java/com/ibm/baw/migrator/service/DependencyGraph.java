@@ -0,0 +1,274 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.model.Project;
+import com.ibm.baw.migrator.model.Snapshot;
+import com.ibm.baw.migrator.model.ToolkitDependency;
+
+import java.util.*;
+
+/**
+ * Compact, int-indexed form of the toolkit graph of a migration plan
+ * Toolkits are numbered in layer order. Their edges are kept in one adjacency array, their project fields,
+ * branches and snapshots in flat arrays indexed by offsets, and every string in one pool. A project is
+ * reduced to its IDs, names, type and default branch, and a snapshot to its ID, name, display name and
+ * creation date, which is all a migration step needs; the project and snapshot beans of the dependency
+ * resolution are not kept. Projects and toolkits are turned back into beans only when they are used.
+ */
+final class DependencyGraph {
+    // Pooled fields of toolkit t: projectFields[t * PROJECT_FIELDS + field]
+    private static final int PROJECT_FIELDS = 7;
+    private static final int ID = 0;
+    private static final int ACRONYM = 1;
+    private static final int NAME = 2;
+    private static final int DISPLAY_NAME = 3;
+    private static final int TYPE = 4;
+    private static final int DEFAULT_BRANCH_ID = 5;
+    private static final int DEFAULT_BRANCH_NAME = 6;
+
+    private final String[] strings;
+    private final int[] projectFields;
+    // Toolkits whose project has the toolkit flag set
+    private final BitSet toolkitFlags;
+    // Project ID -> toolkit
+    private final Map<String, Integer> indexById;
+    private final int[][] layers;
+
+    // Edges of toolkit t: dependencyTargets[dependencyOffsets[t] .. dependencyOffsets[t + 1])
+    private final int[] dependencyOffsets;
+    private final int[] dependencyTargets;
+
+    // Branches of toolkit t: branchOffsets[t] .. branchOffsets[t + 1]; branchNames holds the pooled names
+    private final int[] branchOffsets;
+    private final int[] branchNames;
+
+    // Snapshots of branch b: snapshotOffsets[b] .. snapshotOffsets[b + 1], in plan order
+    private final int[] snapshotOffsets;
+    private final int[] snapshotIds;
+    private final int[] snapshotNames;
+    private final int[] snapshotDisplayNames;
+    // Kept as returned by the server
+    private final int[] snapshotCreationDates;
+
+    private DependencyGraph(Builder builder) {
+        this.strings = builder.pool.toArray(new String[0]);
+        this.projectFields = toArray(builder.projectFields);
+        this.toolkitFlags = builder.toolkitFlags;
+        this.indexById = builder.indexById;
+        this.layers = builder.layers.toArray(new int[0][]);
+        this.dependencyOffsets = toArray(builder.dependencyOffsets);
+        this.dependencyTargets = toArray(builder.dependencyTargets);
+        this.branchOffsets = toArray(builder.branchOffsets);
+        this.branchNames = toArray(builder.branchNames);
+        this.snapshotOffsets = toArray(builder.snapshotOffsets);
+        this.snapshotIds = toArray(builder.snapshotIds);
+        this.snapshotNames = toArray(builder.snapshotNames);
+        this.snapshotDisplayNames = toArray(builder.snapshotDisplayNames);
+        this.snapshotCreationDates = toArray(builder.snapshotCreationDates);
+    }
+
+    /**
+     * Compact the toolkit layers of a resolution
+     * Dependencies on toolkits outside the layers are dropped.
+     */
+    static DependencyGraph of(List<List<ToolkitDependency>> layers) {
+        Builder builder = new Builder();
+        List<ToolkitDependency> ordered = new ArrayList<>();
+        for (List<ToolkitDependency> layer : layers) {
+            int[] indices = new int[layer.size()];
+            for (int i = 0; i < layer.size(); i++) {
+                indices[i] = builder.addToolkit(layer.get(i));
+                ordered.add(layer.get(i));
+            }
+            builder.layers.add(indices);
+        }
+        // Edges need the index of every toolkit, so they are added once all toolkits are numbered
+        for (ToolkitDependency dependency : ordered) {
+            for (ToolkitDependency required : dependency.getDependencies()) {
+                Integer target = builder.indexById.get(required.getProject().getId());
+                if (target != null) {
+                    builder.dependencyTargets.add(target);
+                }
+            }
+            builder.dependencyOffsets.add(builder.dependencyTargets.size());
+        }
+        return new DependencyGraph(builder);
+    }
+
+    int size() {
+        return branchOffsets.length - 1;
+    }
+
+    int getLayerCount() {
+        return layers.length;
+    }
+
+    int[] getLayer(int layer) {
+        return layers[layer].clone();
+    }
+
+    /**
+     * The toolkit with the given project ID, or -1 if it is not in the graph
+     */
+    int indexOf(String projectId) {
+        Integer index = indexById.get(projectId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Rebuild the project of a toolkit
+     * Every call returns a new object; its description and properties are not kept by the graph.
+     */
+    Project getToolkit(int toolkit) {
+        int fields = toolkit * PROJECT_FIELDS;
+        Project project = new Project();
+        project.setId(string(projectFields[fields + ID]));
+        project.setAcronym(string(projectFields[fields + ACRONYM]));
+        project.setFullName(string(projectFields[fields + NAME]));
+        project.setDisplayName(string(projectFields[fields + DISPLAY_NAME]));
+        project.setType(string(projectFields[fields + TYPE]));
+        project.setToolkit(toolkitFlags.get(toolkit));
+        project.setDefaultBranchId(string(projectFields[fields + DEFAULT_BRANCH_ID]));
+        project.setDefaultBranchName(string(projectFields[fields + DEFAULT_BRANCH_NAME]));
+        return project;
+    }
+
+    /**
+     * The toolkits a toolkit depends on directly
+     */
+    int[] getDependencies(int toolkit) {
+        return Arrays.copyOfRange(dependencyTargets, dependencyOffsets[toolkit], dependencyOffsets[toolkit + 1]);
+    }
+
+    List<String> getBranchNames(int toolkit) {
+        List<String> names = new ArrayList<>();
+        for (int b = branchOffsets[toolkit]; b < branchOffsets[toolkit + 1]; b++) {
+            names.add(strings[branchNames[b]]);
+        }
+        return names;
+    }
+
+    /**
+     * Rebuild a toolkit with its branches and snapshots
+     * The snapshots carry the fields kept by the graph; the dependencies of the toolkit are not
+     * rebuilt, they are available through {@link #getDependencies(int)}.
+     */
+    ToolkitDependency materialize(int toolkit) {
+        ToolkitDependency dependency = new ToolkitDependency(getToolkit(toolkit));
+        dependency.setBranchSnapshots(new LinkedHashMap<>());
+        for (int b = branchOffsets[toolkit]; b < branchOffsets[toolkit + 1]; b++) {
+            String branchName = strings[branchNames[b]];
+            List<Snapshot> snapshots = new ArrayList<>(snapshotOffsets[b + 1] - snapshotOffsets[b]);
+            for (int s = snapshotOffsets[b]; s < snapshotOffsets[b + 1]; s++) {
+                snapshots.add(materializeSnapshot(s, branchName));
+            }
+            dependency.addBranchSnapshots(branchName, snapshots);
+        }
+        return dependency;
+    }
+
+    private Snapshot materializeSnapshot(int s, String branchName) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.setId(string(snapshotIds[s]));
+        snapshot.setName(string(snapshotNames[s]));
+        snapshot.setDisplayName(string(snapshotDisplayNames[s]));
+        snapshot.setBranchName(branchName);
+        snapshot.setCreationDate(string(snapshotCreationDates[s]));
+        return snapshot;
+    }
+
+    private String string(int index) {
+        return index >= 0 ? strings[index] : null;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Collects the graph in growable lists; only used while compacting
+     */
+    private static class Builder {
+        private final List<String> pool = new ArrayList<>();
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private final List<Integer> projectFields = new ArrayList<>();
+        private final BitSet toolkitFlags = new BitSet();
+        private final Map<String, Integer> indexById = new HashMap<>();
+        private final List<int[]> layers = new ArrayList<>();
+        private final List<Integer> dependencyOffsets = new ArrayList<>(Collections.singletonList(0));
+        private final List<Integer> dependencyTargets = new ArrayList<>();
+        private final List<Integer> branchOffsets = new ArrayList<>(Collections.singletonList(0));
+        private final List<Integer> branchNames = new ArrayList<>();
+        private final List<Integer> snapshotOffsets = new ArrayList<>(Collections.singletonList(0));
+        private final List<Integer> snapshotIds = new ArrayList<>();
+        private final List<Integer> snapshotNames = new ArrayList<>();
+        private final List<Integer> snapshotDisplayNames = new ArrayList<>();
+        private final List<Integer> snapshotCreationDates = new ArrayList<>();
+
+        int addToolkit(ToolkitDependency dependency) {
+            int index = branchOffsets.size() - 1;
+            Project project = dependency.getProject();
+            // In the order of the field indices
+            projectFields.add(intern(project.getId()));
+            projectFields.add(intern(project.getAcronym()));
+            projectFields.add(intern(project.getName()));
+            projectFields.add(intern(project.getDisplayName()));
+            projectFields.add(intern(project.getType()));
+            projectFields.add(intern(project.getDefaultBranchId()));
+            projectFields.add(intern(project.getDefaultBranchName()));
+            toolkitFlags.set(index, project.isToolkit());
+            indexById.put(project.getId(), index);
+            for (Map.Entry<String, List<Snapshot>> branch : dependency.getBranchSnapshots().entrySet()) {
+                branchNames.add(intern(branch.getKey()));
+                for (Snapshot snapshot : branch.getValue()) {
+                    addSnapshot(snapshot);
+                }
+                snapshotOffsets.add(snapshotIds.size());
+            }
+            branchOffsets.add(branchNames.size());
+            return index;
+        }
+
+        private void addSnapshot(Snapshot snapshot) {
+            snapshotIds.add(intern(snapshot.getId()));
+            snapshotNames.add(intern(snapshot.getName()));
+            snapshotDisplayNames.add(intern(snapshot.getDisplayName()));
+            snapshotCreationDates.add(intern(snapshot.getCreationDate()));
+        }
+
+        /**
+         * Index of a string in the pool, or -1 for null
+         */
+        private int intern(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer index = poolIndex.get(value);
+            if (index == null) {
+                index = pool.size();
+                pool.add(value);
+                poolIndex.put(value, index);
+            }
+            return index;
+        }
+    }
+}
+
+// Made with Bob
@@ -15,30 +15,111 @@
 package com.ibm.baw.migrator.service;
 
 import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.client.BAWAsyncApiClient;
+import com.ibm.baw.migrator.client.HttpStatusException;
 import com.ibm.baw.migrator.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 /**
- * Resolves toolkit dependencies for Process Apps using the what_used API endpoint
- * This provides the complete dependency tree in a single API call
+ * Resolves toolkit dependencies for Process Apps
+ * By default the branch-level what_used API endpoint is used, which returns the toolkits used by a
+ * whole branch in a single API call. Servers without that endpoint use the per-snapshot what_used
+ * endpoint, which returns the complete dependency tree of one snapshot. The original recursive walk
+ * over the per-snapshot dependencies endpoint is kept as a strategy of its own and as a fallback
+ * when what_used fails.
+ * In used-versions-only mode, the graph is built from the versions listed by the per-snapshot what_used
+ * trees of the Process App snapshots, and each toolkit keeps only the snapshots that are referenced,
+ * directly or transitively, instead of every snapshot on every branch.
+ * With a parallelism above 1, discovery proceeds in waves: the lookups of a whole frontier (the branches
+ * and snapshots of all roots, the toolkits they name, then the usage of those toolkits) are started
+ * together as non-blocking lookups of the shared metadata repository, which sends them through its
+ * async client, and the graph is then built from memory on one thread in the same order as a sequential
+ * walk. Discovery takes about one round trip per level of the graph instead of one per lookup, and the
+ * resulting plan does not depend on the parallelism.
  */
 public class DependencyResolver {
     private static final Logger logger = LoggerFactory.getLogger(DependencyResolver.class);
     private final BAWApiClient apiClient;
-    private final Map<String, Project> projectCache = new HashMap<>();
-    private final Map<String, List<Snapshot>> snapshotCache = new HashMap<>();
-    private final Map<String, String> acronymToIdMap = new HashMap<>();
-    private boolean acronymMapInitialized = false;
+    private final MetadataRepository metadata;
     private final boolean ignoreBranches;
+    private final DependencyStrategy strategy;
+    private final boolean usedVersionsOnly;
+    // Whether the lookups of a frontier are started together before the walk
+    private final boolean parallelDiscovery;
+    
+    // Versions (container:snapshot) whose complete dependency tree has been walked in the current resolution
+    private final Set<String> walkedVersions = new HashSet<>();
+    // Branches (container:branch) whose toolkit usage has been walked in the current resolution
+    private final Set<String> walkedBranches = new HashSet<>();
+    // Toolkit snapshot -> toolkit snapshots it uses directly, from the what_used trees (used-versions-only mode)
+    private final Map<Version, Set<Version>> versionDependencies = new HashMap<>();
+    // Snapshots the used toolkit snapshots are searched from: those of the projects being resolved
+    private final Set<Version> rootVersions = new LinkedHashSet<>();
+    // Containers reached without version information (recursive fallback); all their snapshots are kept
+    private final Set<String> allVersionsUsed = new HashSet<>();
+    // Cleared once the server rejects the branch-level what_used endpoint
+    private volatile boolean branchWhatUsedSupported = true;
+    private long branchWhatUsedRequests;
+    private long whatUsedRequests;
+    private long fallbackRequests;
 
     public DependencyResolver(BAWApiClient apiClient, boolean ignoreBranches) {
-        this.apiClient = apiClient;
+        this(apiClient, ignoreBranches, DependencyStrategy.WHAT_USED_BRANCH);
+    }
+
+    public DependencyResolver(BAWApiClient apiClient, boolean ignoreBranches, DependencyStrategy strategy) {
+        this(apiClient, null, ignoreBranches, strategy);
+    }
+
+    /**
+     * @param asyncClient If not null, the snapshot lists of all branches of a toolkit are fetched concurrently
+     */
+    public DependencyResolver(BAWApiClient apiClient, BAWAsyncApiClient asyncClient, boolean ignoreBranches,
+                              DependencyStrategy strategy) {
+        this(new MetadataRepository(apiClient, asyncClient, MetadataRepository.DEFAULT_MAX_ENTRIES),
+             ignoreBranches, strategy);
+    }
+
+    /**
+     * @param metadata The metadata of the source system, shared with the other components reading it
+     */
+    public DependencyResolver(MetadataRepository metadata, boolean ignoreBranches, DependencyStrategy strategy) {
+        this(metadata, ignoreBranches, strategy, false);
+    }
+
+    /**
+     * @param metadata The metadata of the source system, shared with the other components reading it
+     * @param usedVersionsOnly Only keep the toolkit snapshots referenced by the Process App snapshots;
+     *                         needs a what_used strategy, since the dependencies endpoint only names containers
+     */
+    public DependencyResolver(MetadataRepository metadata, boolean ignoreBranches, DependencyStrategy strategy,
+                              boolean usedVersionsOnly) {
+        this(metadata, ignoreBranches, strategy, usedVersionsOnly, 1);
+    }
+
+    /**
+     * @param metadata The metadata of the source system, shared with the other components reading it
+     * @param usedVersionsOnly Only keep the toolkit snapshots referenced by the Process App snapshots
+     * @param parallelism Above 1, discovery runs in waves; how many lookups are in flight at a time is bounded
+     *                    by the async client of the metadata repository
+     */
+    public DependencyResolver(MetadataRepository metadata, boolean ignoreBranches, DependencyStrategy strategy,
+                              boolean usedVersionsOnly, int parallelism) {
+        this.parallelDiscovery = parallelism > 1;
+        this.apiClient = metadata.getClient();
+        this.metadata = metadata;
         this.ignoreBranches = ignoreBranches;
+        this.strategy = strategy;
+        if (usedVersionsOnly && strategy == DependencyStrategy.RECURSIVE) {
+            logger.warn("Used versions only is ignored with the recursive strategy, which does not report toolkit versions");
+        }
+        this.usedVersionsOnly = usedVersionsOnly && strategy != DependencyStrategy.RECURSIVE;
     }
 
     /**
@@ -46,54 +127,326 @@ public class DependencyResolver {
      * Returns a list of ToolkitDependency objects ordered by dependency depth (leaf-first)
      */
     public List<ToolkitDependency> resolveDependencies(Project project) throws IOException {
-        logger.info("Resolving dependencies for project: {}", project.getDisplayName());
+        List<ToolkitDependency> allDependencies = new ArrayList<>();
+        for (List<ToolkitDependency> layer : resolveDependencyLayers(project)) {
+            allDependencies.addAll(layer);
+        }
+        return allDependencies;
+    }
+
+    /**
+     * Resolve all toolkit dependencies for a project and group them into layers
+     * The first layer contains toolkits without dependencies; every toolkit only depends on toolkits
+     * in earlier layers, so the toolkits of one layer can be migrated independently of each other.
+     */
+    public List<List<ToolkitDependency>> resolveDependencyLayers(Project project) throws IOException {
+        MigrationPlan plan = resolvePlan(Collections.singletonList(project));
+        List<ToolkitDependency> toolkits = new ArrayList<>();
+        for (int toolkit = 0; toolkit < plan.getToolkitCount(); toolkit++) {
+            toolkits.add(plan.materializeToolkit(toolkit));
+        }
+        List<List<ToolkitDependency>> layers = new ArrayList<>();
+        for (int i = 0; i < plan.getLayerCount(); i++) {
+            List<ToolkitDependency> layer = new ArrayList<>();
+            for (int toolkit : plan.getLayer(i)) {
+                ToolkitDependency dependency = toolkits.get(toolkit);
+                for (int required : plan.getDependencies(toolkit)) {
+                    dependency.addDependency(toolkits.get(required));
+                }
+                dependency.setDepth(plan.getLayerCount() - i);
+                layer.add(dependency);
+            }
+            layers.add(layer);
+        }
+        return layers;
+    }
+
+    /**
+     * Resolve the union of the toolkit dependencies of several projects into one global plan
+     * Toolkits shared between the projects are resolved once and appear once in the plan.
+     */
+    public MigrationPlan resolvePlan(List<Project> projects) throws IOException {
+        String description = projects.size() == 1
+                ? "project: " + projects.get(0).getDisplayName()
+                : projects.size() + " projects";
+        logger.info("Resolving dependencies for {} using {} strategy", description, strategy);
+        long requestsBefore = apiClient.getRequestCount();
+        branchWhatUsedRequests = 0;
+        whatUsedRequests = 0;
+        fallbackRequests = 0;
+        walkedVersions.clear();
+        walkedBranches.clear();
+        versionDependencies.clear();
+        rootVersions.clear();
+        allVersionsUsed.clear();
         
         // Use a map to collect all unique toolkit dependencies
         Map<String, ToolkitDependency> dependencyMap = new HashMap<>();
+        // Toolkits whose branches or snapshots still have to be checked for dependencies (what_used strategies)
+        Deque<ToolkitDependency> pendingToolkits = new ArrayDeque<>();
+        // Project ID -> node standing for the project itself; its edges are the toolkits it uses directly
+        Map<String, ToolkitDependency> roots = new LinkedHashMap<>();
         
-        // Get branches to process
-        List<Branch> branchesToProcess = getBranchesToProcess(project);
+        prefetchRoots(projects);
         
-        // Process each branch
-        for (Branch branch : branchesToProcess) {
-            logger.info("Processing dependencies from branch: {} for project: {}",
-                       branch.getName(), project.getDisplayName());
+        for (Project project : projects) {
+            ToolkitDependency root = new ToolkitDependency(project);
+            roots.put(project.getId(), root);
             
-            // Get all snapshots for this branch
-            SnapshotsResponse snapshotsResponse = apiClient.getSnapshots(
-                project.getId(),
-                branch.getName()
-            );
+            // Get branches to process
+            List<Branch> branchesToProcess = getBranchesToProcess(project);
             
-            if (snapshotsResponse.getSnapshots() == null || snapshotsResponse.getSnapshots().isEmpty()) {
-                logger.warn("No snapshots found for project: {} on branch: {}",
-                           project.getDisplayName(), branch.getName());
-                continue;
+            // Process each branch
+            for (Branch branch : branchesToProcess) {
+                logger.info("Processing dependencies from branch: {} for project: {}",
+                           branch.getName(), project.getDisplayName());
+                
+                // A single call covers every snapshot on the branch, but does not tell which snapshot uses which version
+                if (strategy == DependencyStrategy.WHAT_USED_BRANCH && !usedVersionsOnly &&
+                    processBranchWhatUsed(project.getAcronym(), branch.getName(), root, dependencyMap, pendingToolkits)) {
+                    continue;
+                }
+                
+                // Get all snapshots for this branch
+                List<Snapshot> snapshots = metadata.getSnapshots(project.getId(), branch.getName());
+                
+                if (snapshots.isEmpty()) {
+                    logger.warn("No snapshots found for project: {} on branch: {}",
+                               project.getDisplayName(), branch.getName());
+                    continue;
+                }
+
+                // Process each snapshot to build the complete dependency tree
+                for (Snapshot snapshot : snapshots) {
+                    if (strategy == DependencyStrategy.RECURSIVE) {
+                        processSnapshotDependencies(project, snapshot, root, dependencyMap);
+                    } else {
+                        if (usedVersionsOnly) {
+                            rootVersions.add(new Version(project.getAcronym(), branch.getName(), snapshot.getName()));
+                        }
+                        processSnapshotWhatUsed(project.getAcronym(), branch.getName(), snapshot.getName(), root,
+                                                dependencyMap, pendingToolkits);
+                    }
+                }
+            }
+        }
+        
+        // Every snapshot of a dependent toolkit is migrated, so toolkit branches (or, without the branch
+        // endpoint, older toolkit snapshots) that were not part of any tree returned so far need their own call.
+        // With used versions only, the trees of the app snapshots already hold every version that is needed.
+        if (usedVersionsOnly) {
+            pendingToolkits.clear();
+            keepUsedVersions(dependencyMap.values());
+        }
+        int prefetched = 0;
+        while (!pendingToolkits.isEmpty()) {
+            // Toolkits found by the previous wave form the next one
+            if (prefetched == 0) {
+                prefetchToolkitUsage(pendingToolkits, dependencyMap);
+                prefetched = pendingToolkits.size();
+            }
+            prefetched--;
+            ToolkitDependency toolkit = pendingToolkits.poll();
+            String containerAcronym = toolkit.getProject().getAcronym();
+            for (Map.Entry<String, List<Snapshot>> entry : toolkit.getBranchSnapshots().entrySet()) {
+                if (strategy == DependencyStrategy.WHAT_USED_BRANCH &&
+                    processBranchWhatUsed(containerAcronym, entry.getKey(), toolkit, dependencyMap, pendingToolkits)) {
+                    continue;
+                }
+                for (Snapshot snapshot : entry.getValue()) {
+                    processSnapshotWhatUsed(containerAcronym, entry.getKey(), snapshot.getName(), toolkit,
+                                            dependencyMap, pendingToolkits);
+                }
             }
+        }
 
-            // Process each snapshot to build the complete dependency tree
-            for (Snapshot snapshot : snapshotsResponse.getSnapshots()) {
-                processSnapshotDependencies(project, snapshot, branch.getName(), dependencyMap);
+        List<List<ToolkitDependency>> layers = computeLayers(dependencyMap.values());
+        
+        Map<String, Set<ToolkitDependency>> requiredToolkits = new HashMap<>();
+        for (Map.Entry<String, ToolkitDependency> entry : roots.entrySet()) {
+            requiredToolkits.put(entry.getKey(), collectRequiredToolkits(entry.getValue()));
+        }
+
+        logger.info("Found {} toolkit dependencies in {} layers for {}", 
+                    dependencyMap.size(), layers.size(), description);
+        if (projects.size() > 1) {
+            int perProjectTotal = 0;
+            for (Set<ToolkitDependency> toolkits : requiredToolkits.values()) {
+                perProjectTotal += toolkits.size();
             }
+            logger.info("Shared toolkits are planned once: {} toolkit migrations instead of {}",
+                        dependencyMap.size(), perProjectTotal);
+        }
+        if (parallelDiscovery) {
+            // Lookups run concurrently, so round trips cannot be attributed to an endpoint
+            logger.info("Dependency resolution for {} took {} API round trips ({} strategy, parallel discovery)",
+                       description, apiClient.getRequestCount() - requestsBefore, strategy);
+        } else if (strategy != DependencyStrategy.RECURSIVE) {
+            logger.info("Dependency resolution for {} took {} API round trips " +
+                       "({} branch what_used, {} snapshot what_used, {} recursive fallback)",
+                       description, apiClient.getRequestCount() - requestsBefore,
+                       branchWhatUsedRequests, whatUsedRequests, fallbackRequests);
+        } else {
+            logger.info("Dependency resolution for {} took {} API round trips (recursive)",
+                       description, apiClient.getRequestCount() - requestsBefore);
         }
+        
+        return new MigrationPlan(projects, layers, requiredToolkits);
+    }
 
-        // Convert map to list and calculate depths
-        List<ToolkitDependency> allDependencies = new ArrayList<>(dependencyMap.values());
-        calculateDepths(allDependencies);
+    /**
+     * Collect the toolkits reachable from a project node over the dependency edges
+     */
+    private Set<ToolkitDependency> collectRequiredToolkits(ToolkitDependency root) {
+        Set<ToolkitDependency> required = new HashSet<>();
+        Deque<ToolkitDependency> toVisit = new ArrayDeque<>(root.getDependencies());
+        while (!toVisit.isEmpty()) {
+            ToolkitDependency toolkit = toVisit.poll();
+            if (required.add(toolkit)) {
+                toVisit.addAll(toolkit.getDependencies());
+            }
+        }
+        return required;
+    }
 
-        // Sort by depth (descending) so leaf nodes come first
-        allDependencies.sort((a, b) -> Integer.compare(b.getDepth(), a.getDepth()));
+    /**
+     * Walk the toolkits used by a whole branch using the branch-level what_used endpoint
+     *
+     * @param parent The node of the toolkit or Process App owning the branch
+     * @return false if the branch could not be resolved this way and its snapshots must be processed one by one
+     */
+    private boolean processBranchWhatUsed(String containerAcronym, String branchAcronym, ToolkitDependency parent,
+                                          Map<String, ToolkitDependency> dependencyMap,
+                                          Deque<ToolkitDependency> pendingToolkits) throws IOException {
+        if (!branchWhatUsedSupported || containerAcronym == null || branchAcronym == null) {
+            return false;
+        }
+        
+        // Already covered
+        if (!walkedBranches.add(containerAcronym + ":" + branchAcronym)) {
+            return true;
+        }
+        
+        WhatUsedResponse whatUsed;
+        long requestsBefore = apiClient.getRequestCount();
+        try {
+            whatUsed = metadata.getBranchWhatUsed(containerAcronym, branchAcronym);
+        } catch (IOException e) {
+            String message = e.getMessage() != null ? e.getMessage() : "";
+            if (HttpStatusException.hasStatus(e, 404, 405, 501)) {
+                // Older servers do not have the branch endpoint at all; stop trying it
+                branchWhatUsedSupported = false;
+                logger.warn("Branch-level what_used is not supported by the server, using per-snapshot what_used: {}", message);
+            } else {
+                logger.warn("Branch-level what_used failed for container={}, branch={}, using per-snapshot what_used: {}",
+                           containerAcronym, branchAcronym, message);
+            }
+            walkedBranches.remove(containerAcronym + ":" + branchAcronym);
+            return false;
+        } finally {
+            branchWhatUsedRequests += apiClient.getRequestCount() - requestsBefore;
+        }
+        
+        // The branch as a whole is not a version, so its tree gives no version edges
+        walkToolkitsUsed(whatUsed.getToolkitsUsed(), parent, null, dependencyMap, pendingToolkits);
+        return true;
+    }
 
-        logger.info("Found {} toolkit dependencies for project: {}", 
-                    allDependencies.size(), project.getDisplayName());
+    /**
+     * Walk the complete dependency tree of one snapshot using the what_used endpoint
+     * Falls back to the recursive dependencies walk if the endpoint fails for this snapshot.
+     *
+     * @param parent The node of the toolkit or Process App owning the snapshot
+     */
+    private void processSnapshotWhatUsed(String containerAcronym, String branchName, String versionAcronym,
+                                         ToolkitDependency parent,
+                                         Map<String, ToolkitDependency> dependencyMap,
+                                         Deque<ToolkitDependency> pendingToolkits) throws IOException {
+        if (containerAcronym == null || versionAcronym == null) {
+            logger.warn("Invalid project or snapshot name: project={}, snapshot={}",
+                       containerAcronym, versionAcronym);
+            return;
+        }
         
-        return allDependencies;
+        // Already covered by a tree returned earlier
+        if (!walkedVersions.add(containerAcronym + ":" + versionAcronym)) {
+            return;
+        }
+        
+        WhatUsedResponse whatUsed;
+        long requestsBefore = apiClient.getRequestCount();
+        try {
+            whatUsed = metadata.getWhatUsed(containerAcronym, versionAcronym);
+            whatUsedRequests += apiClient.getRequestCount() - requestsBefore;
+        } catch (IOException e) {
+            whatUsedRequests += apiClient.getRequestCount() - requestsBefore;
+            logger.warn("what_used failed for snapshot: container={}, version={}, falling back to recursive resolution: {}",
+                       containerAcronym, versionAcronym, e.getMessage());
+            requestsBefore = apiClient.getRequestCount();
+            processVersionDependencies(containerAcronym, versionAcronym, parent, dependencyMap);
+            fallbackRequests += apiClient.getRequestCount() - requestsBefore;
+            return;
+        }
+        
+        walkToolkitsUsed(whatUsed.getToolkitsUsed(), parent, new Version(containerAcronym, branchName, versionAcronym),
+                         dependencyMap, pendingToolkits);
+    }
+
+    /**
+     * Walk a nested toolkits_used list, creating toolkit nodes and parent -> child edges
+     * In used-versions-only mode the edges between the toolkit snapshots are recorded as well.
+     *
+     * @param parentVersion The snapshot that uses the listed versions, or null if the list is not for one snapshot
+     */
+    private void walkToolkitsUsed(List<ToolkitVersionUsed> toolkitsUsed, ToolkitDependency parent, Version parentVersion,
+                                  Map<String, ToolkitDependency> dependencyMap,
+                                  Deque<ToolkitDependency> pendingToolkits) throws IOException {
+        if (toolkitsUsed == null) {
+            return;
+        }
+        
+        for (ToolkitVersionUsed used : toolkitsUsed) {
+            String containerAcronym = used.getContainer();
+            if (containerAcronym == null) {
+                logger.warn("what_used entry has no container acronym: {}", used);
+                continue;
+            }
+            
+            boolean known = dependencyMap.containsKey(containerAcronym);
+            ToolkitDependency child = getOrCreateToolkitNode(containerAcronym, dependencyMap);
+            if (child == null) {
+                continue;
+            }
+            if (!known) {
+                pendingToolkits.add(child);
+            }
+            if (parent != null && parent != child) {
+                parent.addDependency(child);
+            }
+            
+            // The nested list is the complete tree of this toolkit version
+            Version version = null;
+            if (used.getSnapshot() != null) {
+                walkedVersions.add(containerAcronym + ":" + used.getSnapshot());
+                version = new Version(containerAcronym, used.getBranchAcronym(), used.getSnapshot());
+                if (usedVersionsOnly) {
+                    if (parentVersion != null) {
+                        versionDependencies.computeIfAbsent(parentVersion, k -> new LinkedHashSet<>()).add(version);
+                    } else {
+                        rootVersions.add(version);
+                    }
+                }
+            } else {
+                allVersionsUsed.add(containerAcronym);
+            }
+            walkToolkitsUsed(used.getToolkitsUsed(), child, version, dependencyMap, pendingToolkits);
+        }
     }
 
     /**
      * Process dependencies for a single snapshot using the Artifact Management API
      */
-    private void processSnapshotDependencies(Project project, Snapshot snapshot, String branchName,
+    private void processSnapshotDependencies(Project project, Snapshot snapshot, ToolkitDependency root,
                                              Map<String, ToolkitDependency> dependencyMap) throws IOException {
         
         // Use the project acronym as container acronym and snapshot name as version acronym
@@ -106,9 +459,19 @@ public class DependencyResolver {
             return;
         }
         
+        processVersionDependencies(containerAcronym, versionAcronym, root, dependencyMap);
+    }
+
+    /**
+     * Recursively process the direct dependencies of one version using the dependencies endpoint
+     *
+     * @param parent The node of the toolkit or Process App owning the version
+     */
+    private void processVersionDependencies(String containerAcronym, String versionAcronym, ToolkitDependency parent,
+                                            Map<String, ToolkitDependency> dependencyMap) throws IOException {
         try {
             // Get snapshot with dependencies using Artifact Management API
-            Snapshot snapshotWithDeps = apiClient.getSnapshotWithDependencies(containerAcronym, versionAcronym);
+            Snapshot snapshotWithDeps = metadata.getSnapshotWithDependencies(containerAcronym, versionAcronym);
             
             if (snapshotWithDeps.getDependencies() == null || snapshotWithDeps.getDependencies().isEmpty()) {
                 logger.debug("No dependencies found for snapshot: {}", versionAcronym);
@@ -116,11 +479,13 @@ public class DependencyResolver {
             }
             
             // Process each direct dependency recursively
-            // Start with depth 1 for direct dependencies of the Process App
             // The API returns Project objects (containers) without snapshot information
             // We need to process ALL snapshots of each dependent toolkit from ALL branches
             for (Project dependency : snapshotWithDeps.getDependencies()) {
-                processDependency(dependency, dependencyMap, 1);
+                ToolkitDependency child = processDependency(dependency, dependencyMap);
+                if (parent != null && child != null && child != parent) {
+                    parent.addDependency(child);
+                }
             }
             
         } catch (IOException e) {
@@ -134,84 +499,39 @@ public class DependencyResolver {
      * The API returns Project objects (containers) with only the acronym populated,
      * so we need to fetch the full project details first, then iterate through
      * ALL snapshots of each dependent toolkit to accumulate all nested dependencies.
+     * Each toolkit is expanded only once; later encounters just reuse the existing node.
+     *
+     * @return The toolkit node, or null if the dependency is not a migratable toolkit
      */
-    private void processDependency(Project dependencyProject,
-                                   Map<String, ToolkitDependency> dependencyMap,
-                                   int depth) throws IOException {
+    private ToolkitDependency processDependency(Project dependencyProject,
+                                                Map<String, ToolkitDependency> dependencyMap) throws IOException {
         
         // Get container acronym from the project (this is the only field populated by the dependencies API)
         String containerAcronym = dependencyProject.getAcronym();
         
         if (containerAcronym == null) {
             logger.warn("Dependency project has no acronym");
-            return;
-        }
-        
-        logger.debug("Processing dependency: {} at depth: {}", containerAcronym, depth);
-        
-        // Fetch the full project details using the acronym
-        Project fullProject = getProjectFromCache(containerAcronym);
-        if (fullProject == null) {
-            logger.warn("Could not fetch project details for dependency: {}", containerAcronym);
-            return;
-        }
-        
-        // Skip if not a toolkit
-        if (!fullProject.isToolkit()) {
-            logger.debug("Skipping non-toolkit dependency: {}", fullProject.getName());
-            return;
+            return null;
         }
         
-        // Skip system toolkits
-        if (fullProject.isSystemToolkit()) {
-            logger.debug("Skipping system toolkit: {}", fullProject.getName());
-            return;
+        // Already expanded (or being expanded further up the stack in case of a cycle)
+        ToolkitDependency existingDep = dependencyMap.get(containerAcronym);
+        if (existingDep != null) {
+            return existingDep;
         }
         
-        // Get branches to process for this toolkit
-        List<Branch> branchesToProcess = getBranchesToProcess(fullProject);
-        
-        // Create a unique key for this toolkit (using just container acronym since we'll process all snapshots)
-        String toolkitKey = containerAcronym;
-        
-        // Check if we already have this toolkit in the dependency map
-        ToolkitDependency existingDep = dependencyMap.get(toolkitKey);
-        
+        existingDep = getOrCreateToolkitNode(containerAcronym, dependencyMap);
         if (existingDep == null) {
-            // Create new dependency using the full project details
-            existingDep = new ToolkitDependency(fullProject);
-            existingDep.setDepth(depth);
-            dependencyMap.put(toolkitKey, existingDep);
-            logger.debug("Added toolkit dependency: {} at depth: {}", fullProject.getName(), depth);
-        } else {
-            // Update depth if current is deeper (higher depth = deeper in tree = should be processed first)
-            if (depth > existingDep.getDepth()) {
-                existingDep.setDepth(depth);
-                logger.debug("Updated depth for toolkit: {} to {}", containerAcronym, depth);
-            }
+            return null;
         }
+        allVersionsUsed.add(containerAcronym);
+        
+        prefetchToolkitDependencies(existingDep, dependencyMap);
         
         // Process all branches for this toolkit
         Set<String> processedNestedToolkits = new HashSet<>();
         
-        for (Branch branch : branchesToProcess) {
-            // Get all snapshots for this branch
-            List<Snapshot> toolkitSnapshots = getSnapshotsFromCache(
-                fullProject.getId(),
-                branch.getName()
-            );
-            
-            if (toolkitSnapshots == null || toolkitSnapshots.isEmpty()) {
-                logger.warn("No snapshots found for toolkit: {} on branch: {}",
-                           fullProject.getName(), branch.getName());
-                continue;
-            }
-            
-            // Add snapshots for this branch
-            existingDep.addBranchSnapshots(branch.getName(), sortSnapshotsByDate(toolkitSnapshots));
-            logger.debug("Added {} snapshots from branch: {} for toolkit: {}",
-                        toolkitSnapshots.size(), branch.getName(), fullProject.getName());
-            
+        for (List<Snapshot> toolkitSnapshots : existingDep.getBranchSnapshots().values()) {
             // Now iterate through ALL snapshots of this branch to find all nested dependencies
             for (Snapshot snapshot : toolkitSnapshots) {
             String snapshotAcronym = snapshot.getName();
@@ -223,7 +543,7 @@ public class DependencyResolver {
             
             try {
                 // Get this snapshot's dependencies
-                Snapshot snapshotWithDeps = apiClient.getSnapshotWithDependencies(containerAcronym, snapshotAcronym);
+                Snapshot snapshotWithDeps = metadata.getSnapshotWithDependencies(containerAcronym, snapshotAcronym);
                 
                 if (snapshotWithDeps.getDependencies() != null && !snapshotWithDeps.getDependencies().isEmpty()) {
                     logger.debug("Snapshot {} of toolkit {} has {} dependencies",
@@ -237,8 +557,11 @@ public class DependencyResolver {
                         if (nestedContainerAcronym != null && !processedNestedToolkits.contains(nestedContainerAcronym)) {
                             processedNestedToolkits.add(nestedContainerAcronym);
                             
-                            // Recursively process with increased depth
-                            processDependency(nestedDep, dependencyMap, depth + 1);
+                            // Recursively process and record the parent -> child edge
+                            ToolkitDependency child = processDependency(nestedDep, dependencyMap);
+                            if (child != null && child != existingDep) {
+                                existingDep.addDependency(child);
+                            }
                         }
                     }
                 }
@@ -248,13 +571,386 @@ public class DependencyResolver {
             }
             }
         }
+        
+        return existingDep;
+    }
+
+    /**
+     * Look up the branches, snapshots and usage of all root projects, then the toolkits they name
+     */
+    private void prefetchRoots(List<Project> projects) {
+        if (!parallelDiscovery) {
+            return;
+        }
+        List<CompletableFuture<?>> lookups = new ArrayList<>();
+        for (Project project : projects) {
+            lookups.add(getBranchesToProcessAsync(project));
+        }
+        awaitWave(lookups);
+        
+        boolean perBranch = strategy == DependencyStrategy.WHAT_USED_BRANCH && !usedVersionsOnly;
+        Set<String> named = ConcurrentHashMap.newKeySet();
+        lookups.clear();
+        for (Project project : projects) {
+            for (Branch branch : cachedBranchesToProcess(project)) {
+                if (perBranch && branchWhatUsedSupported) {
+                    lookups.add(fetchBranchWhatUsed(project.getAcronym(), branch.getName())
+                                .thenAccept(toolkitsUsed -> collectContainers(toolkitsUsed, named)));
+                } else {
+                    lookups.add(metadata.getSnapshotsAsync(project.getId(), branch.getName()));
+                }
+            }
+        }
+        awaitWave(lookups);
+        
+        lookups.clear();
+        for (Project project : projects) {
+            for (Branch branch : cachedBranchesToProcess(project)) {
+                if (perBranch && branchWhatUsedSupported) {
+                    continue;
+                }
+                for (Snapshot snapshot : cachedSnapshots(project.getId(), branch.getName())) {
+                    lookups.add(snapshotUsageLookup(project.getAcronym(), snapshot.getName(), named));
+                }
+            }
+        }
+        awaitWave(lookups);
+        
+        prefetchToolkitNodes(named, Collections.emptyMap());
+    }
+
+    /**
+     * Look up the usage of every branch or unwalked snapshot of the pending toolkits, then the toolkits it names
+     */
+    private void prefetchToolkitUsage(Collection<ToolkitDependency> toolkits, Map<String, ToolkitDependency> dependencyMap) {
+        if (!parallelDiscovery) {
+            return;
+        }
+        Set<String> named = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<?>> lookups = new ArrayList<>();
+        for (ToolkitDependency toolkit : toolkits) {
+            String containerAcronym = toolkit.getProject().getAcronym();
+            for (Map.Entry<String, List<Snapshot>> entry : toolkit.getBranchSnapshots().entrySet()) {
+                if (strategy == DependencyStrategy.WHAT_USED_BRANCH && branchWhatUsedSupported) {
+                    if (!walkedBranches.contains(containerAcronym + ":" + entry.getKey())) {
+                        lookups.add(fetchBranchWhatUsed(containerAcronym, entry.getKey())
+                                    .thenAccept(toolkitsUsed -> collectContainers(toolkitsUsed, named)));
+                    }
+                    continue;
+                }
+                for (Snapshot snapshot : entry.getValue()) {
+                    if (!walkedVersions.contains(containerAcronym + ":" + snapshot.getName())) {
+                        lookups.add(snapshotUsageLookup(containerAcronym, snapshot.getName(), named));
+                    }
+                }
+            }
+        }
+        awaitWave(lookups);
+        prefetchToolkitNodes(named, dependencyMap);
+    }
+
+    /**
+     * Look up the direct dependencies of every snapshot of a toolkit, then the toolkits they name (recursive strategy)
+     */
+    private void prefetchToolkitDependencies(ToolkitDependency toolkit, Map<String, ToolkitDependency> dependencyMap) {
+        if (!parallelDiscovery) {
+            return;
+        }
+        String containerAcronym = toolkit.getProject().getAcronym();
+        Set<String> named = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<?>> lookups = new ArrayList<>();
+        for (List<Snapshot> snapshots : toolkit.getBranchSnapshots().values()) {
+            for (Snapshot snapshot : snapshots) {
+                if (snapshot.getName() != null) {
+                    lookups.add(metadata.getSnapshotWithDependenciesAsync(containerAcronym, snapshot.getName())
+                                .thenAccept(snapshotWithDeps -> collectDependencies(snapshotWithDeps, named)));
+                }
+            }
+        }
+        awaitWave(lookups);
+        prefetchToolkitNodes(named, dependencyMap);
+    }
+
+    /**
+     * Look up the branches and snapshot lists of toolkits that have no node yet
+     */
+    private void prefetchToolkitNodes(Set<String> containerAcronyms, Map<String, ToolkitDependency> dependencyMap) {
+        List<CompletableFuture<?>> lookups = new ArrayList<>();
+        for (String containerAcronym : new TreeSet<>(containerAcronyms)) {
+            if (dependencyMap.containsKey(containerAcronym)) {
+                continue;
+            }
+            Project project;
+            try {
+                project = metadata.findByAcronym(containerAcronym);
+            } catch (IOException e) {
+                // The walk reports it
+                continue;
+            }
+            if (project == null || !project.isToolkit() || project.isSystemToolkit()) {
+                continue;
+            }
+            lookups.add(getBranchesToProcessAsync(project).thenCompose(branches -> {
+                List<CompletableFuture<?>> snapshots = new ArrayList<>();
+                for (Branch branch : branches) {
+                    snapshots.add(metadata.getSnapshotsAsync(project.getId(), branch.getName()));
+                }
+                return CompletableFuture.allOf(snapshots.toArray(new CompletableFuture<?>[0]));
+            }));
+        }
+        awaitWave(lookups);
+    }
+
+    private CompletableFuture<?> snapshotUsageLookup(String containerAcronym, String versionAcronym, Set<String> named) {
+        if (strategy == DependencyStrategy.RECURSIVE) {
+            return metadata.getSnapshotWithDependenciesAsync(containerAcronym, versionAcronym)
+                    .thenAccept(snapshotWithDeps -> collectDependencies(snapshotWithDeps, named));
+        }
+        return metadata.getWhatUsedAsync(containerAcronym, versionAcronym)
+                .thenAccept(whatUsed -> collectContainers(whatUsed.getToolkitsUsed(), named));
+    }
+
+    private CompletableFuture<List<ToolkitVersionUsed>> fetchBranchWhatUsed(String containerAcronym, String branchAcronym) {
+        return metadata.getBranchWhatUsedAsync(containerAcronym, branchAcronym).handle((whatUsed, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (HttpStatusException.hasStatus(cause, 404, 405, 501)) {
+                    // Spare the rest of the wave; the walk reports the fallback
+                    branchWhatUsedSupported = false;
+                }
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return whatUsed.getToolkitsUsed();
+        });
+    }
+
+    private static void collectContainers(List<ToolkitVersionUsed> toolkitsUsed, Set<String> named) {
+        if (toolkitsUsed == null) {
+            return;
+        }
+        for (ToolkitVersionUsed used : toolkitsUsed) {
+            if (used.getContainer() != null) {
+                named.add(used.getContainer());
+            }
+            collectContainers(used.getToolkitsUsed(), named);
+        }
+    }
+
+    private static void collectDependencies(Snapshot snapshotWithDeps, Set<String> named) {
+        if (snapshotWithDeps.getDependencies() == null) {
+            return;
+        }
+        for (Project dependency : snapshotWithDeps.getDependencies()) {
+            if (dependency.getAcronym() != null) {
+                named.add(dependency.getAcronym());
+            }
+        }
+    }
+
+    /**
+     * Branches of a project as already looked up by the current wave; empty if the lookup failed
+     */
+    private List<Branch> cachedBranchesToProcess(Project project) {
+        try {
+            return getBranchesToProcess(project);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private List<Snapshot> cachedSnapshots(String projectId, String branchName) {
+        try {
+            return metadata.getSnapshots(projectId, branchName);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Wait until every lookup of one wave has completed
+     * The lookups only fill the metadata repository. A failed lookup is not cached, so the walk that follows
+     * repeats it and handles the error as in a sequential resolution.
+     */
+    private void awaitWave(List<CompletableFuture<?>> lookups) {
+        CompletableFuture<?>[] wave = new CompletableFuture<?>[lookups.size()];
+        for (int i = 0; i < wave.length; i++) {
+            wave[i] = lookups.get(i).exceptionally(error -> {
+                logger.debug("Metadata lookup failed during parallel discovery: {}", error.getMessage());
+                return null;
+            });
+        }
+        try {
+            CompletableFuture.allOf(wave).get();
+        } catch (ExecutionException e) {
+            logger.debug("Metadata lookup failed during parallel discovery", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drop the toolkit snapshots that the snapshots of the resolved projects do not use, directly or transitively
+     * The used snapshots are those reachable from the project snapshots over the version edges of the what_used
+     * trees; a snapshot is matched on the branch the tree names, or by name alone if the tree names no branch.
+     * Branches left without snapshots are dropped as well. Toolkits reached through the recursive fallback carry
+     * no version information and keep all their snapshots.
+     */
+    private void keepUsedVersions(Collection<ToolkitDependency> toolkits) {
+        // Container -> used snapshots of the container
+        Map<String, Set<Version>> used = new HashMap<>();
+        Set<Version> reached = new HashSet<>(rootVersions);
+        Deque<Version> toVisit = new ArrayDeque<>(rootVersions);
+        while (!toVisit.isEmpty()) {
+            for (Version dependency : versionDependencies.getOrDefault(toVisit.poll(), Collections.emptySet())) {
+                if (reached.add(dependency)) {
+                    used.computeIfAbsent(dependency.container, k -> new HashSet<>()).add(dependency);
+                    toVisit.add(dependency);
+                }
+            }
+        }
+        for (Version root : rootVersions) {
+            used.computeIfAbsent(root.container, k -> new HashSet<>()).add(root);
+        }
+        
+        int total = 0;
+        int kept = 0;
+        for (ToolkitDependency toolkit : toolkits) {
+            String containerAcronym = toolkit.getProject().getAcronym();
+            Set<Version> usedVersions = used.getOrDefault(containerAcronym, Collections.emptySet());
+            Set<Version> found = new HashSet<>();
+            Iterator<Map.Entry<String, List<Snapshot>>> branches = toolkit.getBranchSnapshots().entrySet().iterator();
+            while (branches.hasNext()) {
+                Map.Entry<String, List<Snapshot>> branch = branches.next();
+                total += branch.getValue().size();
+                if (allVersionsUsed.contains(containerAcronym)) {
+                    kept += branch.getValue().size();
+                    continue;
+                }
+                List<Snapshot> usedSnapshots = new ArrayList<>();
+                for (Snapshot snapshot : branch.getValue()) {
+                    Version onBranch = new Version(containerAcronym, branch.getKey(), snapshot.getName());
+                    Version anyBranch = new Version(containerAcronym, null, snapshot.getName());
+                    boolean isUsed = false;
+                    if (usedVersions.contains(onBranch)) {
+                        found.add(onBranch);
+                        isUsed = true;
+                    }
+                    if (usedVersions.contains(anyBranch)) {
+                        found.add(anyBranch);
+                        isUsed = true;
+                    }
+                    if (isUsed) {
+                        usedSnapshots.add(snapshot);
+                    }
+                }
+                if (usedSnapshots.isEmpty()) {
+                    branches.remove();
+                } else {
+                    branch.setValue(usedSnapshots);
+                    kept += usedSnapshots.size();
+                }
+            }
+            if (!allVersionsUsed.contains(containerAcronym) && found.size() < usedVersions.size()) {
+                Set<String> missing = new TreeSet<>();
+                for (Version version : usedVersions) {
+                    if (!found.contains(version)) {
+                        missing.add(version.toString());
+                    }
+                }
+                logger.warn("Toolkit {} uses snapshots that are not on any processed branch: {}",
+                           toolkit.getProject().getDisplayName(), missing);
+            }
+        }
+        logger.info("Used versions only: keeping {} of {} toolkit snapshots", kept, total);
+    }
+
+    /**
+     * Look up the toolkit node for a container acronym, creating it (with the snapshots of all
+     * branches to process) if this is the first time the toolkit is seen
+     *
+     * @return The toolkit node, or null if the container is not a migratable toolkit
+     */
+    private ToolkitDependency getOrCreateToolkitNode(String containerAcronym,
+                                                     Map<String, ToolkitDependency> dependencyMap) throws IOException {
+        ToolkitDependency existingDep = dependencyMap.get(containerAcronym);
+        if (existingDep != null) {
+            return existingDep;
+        }
+        
+        logger.debug("Processing dependency: {}", containerAcronym);
+        
+        // Fetch the full project details using the acronym
+        Project fullProject = findProject(containerAcronym);
+        if (fullProject == null) {
+            logger.warn("Could not fetch project details for dependency: {}", containerAcronym);
+            return null;
+        }
+        
+        // Skip if not a toolkit
+        if (!fullProject.isToolkit()) {
+            logger.debug("Skipping non-toolkit dependency: {}", fullProject.getName());
+            return null;
+        }
+        
+        // Skip system toolkits
+        if (fullProject.isSystemToolkit()) {
+            logger.debug("Skipping system toolkit: {}", fullProject.getName());
+            return null;
+        }
+        
+        // Get branches to process for this toolkit
+        List<Branch> branchesToProcess = getBranchesToProcess(fullProject);
+        
+        // Create new dependency using the full project details
+        ToolkitDependency toolkit = new ToolkitDependency(fullProject);
+        dependencyMap.put(containerAcronym, toolkit);
+        logger.debug("Added toolkit dependency: {}", fullProject.getName());
+        
+        metadata.prefetchSnapshots(fullProject.getId(), branchesToProcess);
+        
+        for (Branch branch : branchesToProcess) {
+            // Get all snapshots for this branch
+            List<Snapshot> toolkitSnapshots = metadata.getSnapshots(fullProject.getId(), branch.getName());
+            
+            if (toolkitSnapshots.isEmpty()) {
+                logger.warn("No snapshots found for toolkit: {} on branch: {}",
+                           fullProject.getName(), branch.getName());
+                continue;
+            }
+            
+            // Add snapshots for this branch
+            toolkit.addBranchSnapshots(branch.getName(), sortSnapshotsByDate(toolkitSnapshots));
+            logger.debug("Added {} snapshots from branch: {} for toolkit: {}",
+                        toolkitSnapshots.size(), branch.getName(), fullProject.getName());
+        }
+        
+        return toolkit;
     }
 
     /**
      * Get the list of branches to process for a project
      */
     private List<Branch> getBranchesToProcess(Project project) throws IOException {
+        return branchesToProcess(project, ignoreBranches ? null : metadata.getBranches(project.getId()));
+    }
+
+    /**
+     * Get the branches to process for a project without blocking
+     */
+    private CompletableFuture<List<Branch>> getBranchesToProcessAsync(Project project) {
         if (ignoreBranches) {
+            return CompletableFuture.completedFuture(branchesToProcess(project, null));
+        }
+        return metadata.getBranchesAsync(project.getId()).thenApply(branches -> branchesToProcess(project, branches));
+    }
+
+    /**
+     * Order the branches of a project for processing, or pick its default branch
+     *
+     * @param projectBranches The branches of the project, or null if only the default branch is processed
+     */
+    private List<Branch> branchesToProcess(Project project, List<Branch> projectBranches) {
+        if (projectBranches == null) {
             // Only process the default branch
             Branch defaultBranch = new Branch();
             defaultBranch.setName(project.getDefaultBranchName());
@@ -262,9 +958,7 @@ public class DependencyResolver {
             return Collections.singletonList(defaultBranch);
         } else {
             // Process all branches
-            BranchesResponse branchesResponse = apiClient.getBranches(project.getId());
-            
-            if (branchesResponse.getBranches() == null || branchesResponse.getBranches().isEmpty()) {
+            if (projectBranches.isEmpty()) {
                 logger.warn("No branches found for project: {}, using default branch", project.getDisplayName());
                 Branch defaultBranch = new Branch();
                 defaultBranch.setName(project.getDefaultBranchName());
@@ -273,7 +967,7 @@ public class DependencyResolver {
             }
             
             // Sort branches to ensure default branch is processed first
-            List<Branch> branches = new ArrayList<>(branchesResponse.getBranches());
+            List<Branch> branches = new ArrayList<>(projectBranches);
             String defaultBranchName = project.getDefaultBranchName();
             branches.sort((b1, b2) -> {
                 // Default branch comes first
@@ -292,132 +986,209 @@ public class DependencyResolver {
     }
 
     /**
-     * Initialize the acronym-to-ID map by fetching all projects
+     * Look up a project of the source catalog by its container acronym
      */
-    private void initializeAcronymMap() throws IOException {
-        if (acronymMapInitialized) {
-            return;
+    private Project findProject(String containerAcronym) throws IOException {
+        Project project = metadata.findByAcronym(containerAcronym);
+        if (project == null) {
+            logger.warn("No project found for acronym: {}", containerAcronym);
         }
+        return project;
+    }
+
+    /**
+     * Sort snapshots by creation date (oldest first)
+     */
+    private List<Snapshot> sortSnapshotsByDate(List<Snapshot> snapshots) {
+        return snapshots.stream()
+            .sorted(Comparator.comparing(Snapshot::getCreationDate, Comparator.nullsLast(String::compareTo)))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Group toolkits into layers using Kahn's algorithm over the parent -> child dependency edges
+     * Layer 0 holds toolkits without dependencies, layer n only depends on layers before n.
+     * The depth of each toolkit is set so that sorting by depth (descending) yields the same order.
+     * Toolkits on a dependency cycle (a strongly connected component) cannot be layered among
+     * themselves; each cycle is migrated one toolkit per layer as soon as everything it depends on is
+     * done, and the toolkits that depend on the cycle are layered after it as usual.
+     */
+    public static List<List<ToolkitDependency>> computeLayers(Collection<ToolkitDependency> dependencies) {
+        Set<ToolkitDependency> nodes = new LinkedHashSet<>(dependencies);
+        Comparator<ToolkitDependency> byAcronym = Comparator.comparing(
+            dep -> dep.getProject().getAcronym(), Comparator.nullsLast(String::compareTo));
         
-        logger.info("Initializing acronym-to-ID map by fetching all projects...");
-        ProjectsResponse response = apiClient.getProjects();
-        
-        if (response.getProjects() != null) {
-            for (Project project : response.getProjects()) {
-                String acronym = project.getAcronym();
-                String id = project.getId();
-                
-                if (acronym != null && id != null) {
-                    acronymToIdMap.put(acronym, id);
-                    // Also cache the project
-                    projectCache.put(id, project);
+        // Layering runs over the components, which form an acyclic graph
+        List<List<ToolkitDependency>> components = findStronglyConnectedComponents(nodes);
+        Map<ToolkitDependency, Integer> componentOf = new HashMap<>();
+        for (int c = 0; c < components.size(); c++) {
+            components.get(c).sort(byAcronym);
+            for (ToolkitDependency dep : components.get(c)) {
+                componentOf.put(dep, c);
+            }
+        }
+        int[] remainingDependencies = new int[components.size()];
+        List<Set<Integer>> dependents = new ArrayList<>();
+        for (int c = 0; c < components.size(); c++) {
+            dependents.add(new LinkedHashSet<>());
+        }
+        for (ToolkitDependency dep : nodes) {
+            int component = componentOf.get(dep);
+            for (ToolkitDependency child : dep.getDependencies()) {
+                Integer childComponent = componentOf.get(child);
+                if (childComponent != null && childComponent != component
+                        && dependents.get(childComponent).add(component)) {
+                    remainingDependencies[component]++;
                 }
             }
-            logger.info("Initialized acronym map with {} projects", acronymToIdMap.size());
         }
         
-        acronymMapInitialized = true;
-    }
-    
-    /**
-     * Get project from cache or fetch from API using container acronym
-     * First converts acronym to ID using the acronym map
-     */
-    private Project getProjectFromCache(String containerAcronym) throws IOException {
-        // Initialize acronym map if needed
-        if (!acronymMapInitialized) {
-            initializeAcronymMap();
+        List<List<ToolkitDependency>> layers = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        for (int c = 0; c < components.size(); c++) {
+            if (remainingDependencies[c] == 0) {
+                current.add(c);
+            }
         }
         
-        // Look up project ID from acronym
-        String projectId = acronymToIdMap.get(containerAcronym);
-        if (projectId == null) {
-            logger.warn("No project ID found for acronym: {}", containerAcronym);
-            return null;
+        while (!current.isEmpty()) {
+            List<ToolkitDependency> layer = new ArrayList<>();
+            List<List<ToolkitDependency>> cycles = new ArrayList<>();
+            for (int c : current) {
+                if (components.get(c).size() == 1) {
+                    layer.add(components.get(c).get(0));
+                } else {
+                    cycles.add(components.get(c));
+                }
+            }
+            if (!layer.isEmpty()) {
+                layer.sort(byAcronym);
+                layers.add(layer);
+            }
+            cycles.sort(Comparator.comparing(cycle -> cycle.get(0), byAcronym));
+            for (List<ToolkitDependency> cycle : cycles) {
+                logger.warn("Dependency cycle detected between {} toolkits ({}), they will be migrated one at a time",
+                            cycle.size(), cycle.stream().map(dep -> dep.getProject().getAcronym())
+                                               .collect(Collectors.joining(", ")));
+                for (ToolkitDependency dep : cycle) {
+                    layers.add(Collections.singletonList(dep));
+                }
+            }
+            
+            List<Integer> next = new ArrayList<>();
+            for (int c : current) {
+                for (int parent : dependents.get(c)) {
+                    if (--remainingDependencies[parent] == 0) {
+                        next.add(parent);
+                    }
+                }
+            }
+            current = next;
         }
         
-        // Check if project is in cache
-        if (!projectCache.containsKey(projectId)) {
-            try {
-                Project project = apiClient.getProject(projectId);
-                projectCache.put(projectId, project);
-            } catch (IOException e) {
-                logger.error("Failed to fetch project with ID: {}", projectId, e);
-                return null;
+        // Leaf nodes get the highest depth
+        for (int i = 0; i < layers.size(); i++) {
+            for (ToolkitDependency dep : layers.get(i)) {
+                dep.setDepth(layers.size() - i);
             }
         }
-        return projectCache.get(projectId);
+        
+        logger.debug("Computed {} dependency layers for {} toolkits", layers.size(), nodes.size());
+        return layers;
     }
 
     /**
-     * Get snapshots from cache or fetch from API
+     * Find the strongly connected components of the dependency graph with Tarjan's algorithm
+     * A component with more than one toolkit is a dependency cycle.
      */
-    private List<Snapshot> getSnapshotsFromCache(String projectId, String branchName) throws IOException {
-        String cacheKey = projectId + ":" + branchName;
-        if (!snapshotCache.containsKey(cacheKey)) {
-            SnapshotsResponse response = apiClient.getSnapshots(projectId, branchName);
-            List<Snapshot> snapshots = response.getSnapshots() != null ? 
-                response.getSnapshots() : Collections.emptyList();
-            snapshotCache.put(cacheKey, snapshots);
+    private static List<List<ToolkitDependency>> findStronglyConnectedComponents(Set<ToolkitDependency> nodes) {
+        List<List<ToolkitDependency>> components = new ArrayList<>();
+        Map<ToolkitDependency, Integer> index = new HashMap<>();
+        Map<ToolkitDependency, Integer> lowLink = new HashMap<>();
+        Deque<ToolkitDependency> stack = new ArrayDeque<>();
+        Set<ToolkitDependency> onStack = new HashSet<>();
+        for (ToolkitDependency dep : nodes) {
+            if (!index.containsKey(dep)) {
+                connect(dep, nodes, index, lowLink, stack, onStack, components);
+            }
         }
-        return snapshotCache.get(cacheKey);
+        return components;
     }
 
-    /**
-     * Sort snapshots by creation date (oldest first)
-     */
-    private List<Snapshot> sortSnapshotsByDate(List<Snapshot> snapshots) {
-        return snapshots.stream()
-            .sorted(Comparator.comparing(Snapshot::getCreationDate, Comparator.nullsLast(String::compareTo)))
-            .collect(Collectors.toList());
+    private static void connect(ToolkitDependency dep, Set<ToolkitDependency> nodes,
+                                Map<ToolkitDependency, Integer> index, Map<ToolkitDependency, Integer> lowLink,
+                                Deque<ToolkitDependency> stack, Set<ToolkitDependency> onStack,
+                                List<List<ToolkitDependency>> components) {
+        index.put(dep, index.size());
+        lowLink.put(dep, index.get(dep));
+        stack.push(dep);
+        onStack.add(dep);
+        
+        for (ToolkitDependency child : dep.getDependencies()) {
+            if (!nodes.contains(child)) {
+                continue;
+            }
+            if (!index.containsKey(child)) {
+                connect(child, nodes, index, lowLink, stack, onStack, components);
+                lowLink.put(dep, Math.min(lowLink.get(dep), lowLink.get(child)));
+            } else if (onStack.contains(child)) {
+                lowLink.put(dep, Math.min(lowLink.get(dep), index.get(child)));
+            }
+        }
+        
+        if (lowLink.get(dep).equals(index.get(dep))) {
+            List<ToolkitDependency> component = new ArrayList<>();
+            ToolkitDependency member;
+            do {
+                member = stack.pop();
+                onStack.remove(member);
+                component.add(member);
+            } while (member != dep);
+            components.add(component);
+        }
     }
 
     /**
-     * Calculate proper depths for all dependencies based on their relationships
-     * This ensures that dependencies are ordered correctly (leaf-first)
+     * One snapshot of a container on a branch; the branch is null if the what_used tree did not name it
      */
-    private void calculateDepths(List<ToolkitDependency> dependencies) {
-        // Build a map for quick lookup
-        Map<String, ToolkitDependency> depMap = new HashMap<>();
-        for (ToolkitDependency dep : dependencies) {
-            depMap.put(dep.getProject().getId(), dep);
+    private static final class Version {
+        private final String container;
+        private final String branch;
+        private final String snapshot;
+
+        Version(String container, String branch, String snapshot) {
+            this.container = container;
+            this.branch = branch;
+            this.snapshot = snapshot;
         }
-        
-        // Multiple passes to ensure all depths are correctly calculated
-        boolean changed = true;
-        int maxIterations = 100;
-        int iteration = 0;
-        
-        while (changed && iteration < maxIterations) {
-            changed = false;
-            iteration++;
-            
-            for (ToolkitDependency dep : dependencies) {
-                // Check if this dependency has any dependencies itself
-                // by looking at its project's dependencies
-                if (dep.getDependencies() != null) {
-                    for (ToolkitDependency childDep : dep.getDependencies()) {
-                        int newDepth = dep.getDepth() + 1;
-                        if (newDepth > childDep.getDepth()) {
-                            childDep.setDepth(newDepth);
-                            changed = true;
-                        }
-                    }
-                }
-            }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Version that = (Version) o;
+            return Objects.equals(container, that.container) && Objects.equals(branch, that.branch)
+                    && Objects.equals(snapshot, that.snapshot);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(container, branch, snapshot);
+        }
+
+        @Override
+        public String toString() {
+            return branch != null ? snapshot + " (branch " + branch + ")" : snapshot;
         }
-        
-        logger.debug("Calculated depths in {} iterations", iteration);
     }
 
     /**
      * Clear caches
      */
     public void clearCache() {
-        projectCache.clear();
-        snapshotCache.clear();
-        acronymToIdMap.clear();
-        acronymMapInitialized = false;
+        metadata.clear();
+        walkedVersions.clear();
+        walkedBranches.clear();
     }
 }
 
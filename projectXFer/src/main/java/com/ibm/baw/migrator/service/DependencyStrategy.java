@@ -0,0 +1,44 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+/**
+ * How the DependencyResolver discovers toolkit dependencies
+ */
+public enum DependencyStrategy {
+    /**
+     * One what_used call per branch; falls back to WHAT_USED on servers without the branch endpoint
+     */
+    WHAT_USED_BRANCH,
+
+    /**
+     * One what_used call per snapshot returns the complete nested dependency tree of that snapshot
+     */
+    WHAT_USED,
+
+    /**
+     * One dependencies call per snapshot of every toolkit, walked recursively
+     */
+    RECURSIVE;
+
+    /**
+     * Parse a strategy name as given on the command line (e.g. "what_used_branch" or "recursive")
+     */
+    public static DependencyStrategy fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
+
+// Made with Bob
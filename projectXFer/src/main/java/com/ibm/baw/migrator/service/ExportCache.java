@@ -0,0 +1,326 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.baw.migrator.model.MigrationStep;
+import com.ibm.baw.migrator.model.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Content-addressed store of exported snapshots, reused across runs, projects and targets
+ * Each export is stored once as {@code <sha256>.twx}; an index maps the key of a snapshot (project ID,
+ * branch and snapshot ID) to its content. The checksum is computed while the export streams in, and a
+ * cached file is verified against it once per run before it is reused. When the total size exceeds the
+ * disk budget, the least recently used content is evicted, except for files that are still waiting to
+ * be imported.
+ */
+public class ExportCache implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExportCache.class);
+
+    public static final String INDEX_FILE_NAME = "index.json";
+
+    private static final String CONTENT_SUFFIX = ".twx";
+    private static final String TEMP_SUFFIX = ".part";
+
+    private final File directory;
+    private final long maxBytes;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Snapshot key -> SHA-256 of its content
+    private final Map<String, String> contentByKey = new HashMap<>();
+    // SHA-256 -> size and last use of the content
+    private final Map<String, ContentEntry> contents = new HashMap<>();
+    // SHA-256 -> number of callers that still need the file
+    private final Map<String, Integer> pinned = new HashMap<>();
+    // Contents whose checksum has been verified during this run
+    private final Set<String> verified = new HashSet<>();
+    private long totalBytes = 0;
+
+    /**
+     * Open the cache in the given directory
+     *
+     * @param directory Directory holding the cached exports and the index
+     * @param maxBytes Disk budget; least recently used exports are evicted beyond it
+     */
+    public ExportCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create export cache directory: " + directory.getAbsolutePath());
+        }
+        loadIndex();
+        logger.info("Export cache {}: {} exports, {} MB of {} MB budget", directory.getAbsolutePath(),
+                   contents.size(), totalBytes / (1024 * 1024), maxBytes / (1024 * 1024));
+    }
+
+    /**
+     * Key of a snapshot in the cache; the snapshot ID is used when known since names can be reused
+     */
+    public static String keyOf(MigrationStep step) {
+        Snapshot snapshot = step.getSnapshot();
+        String snapshotId = snapshot.getId() != null ? snapshot.getId() : snapshot.getName();
+        return step.getProject().getId() + "|" + step.getBranchName() + "|" + snapshotId;
+    }
+
+    /**
+     * Look up a verified export of the step
+     * A returned file is pinned against eviction until {@link #release(File)} is called.
+     *
+     * @return The cached export, or null if the step has to be exported
+     */
+    public File get(MigrationStep step) throws IOException {
+        String sha256;
+        ContentEntry entry;
+        synchronized (this) {
+            sha256 = contentByKey.get(keyOf(step));
+            entry = sha256 != null ? contents.get(sha256) : null;
+            if (entry == null) {
+                return null;
+            }
+            pin(sha256);
+        }
+
+        File file = contentFile(sha256);
+        boolean valid = file.isFile() && file.length() == entry.size;
+        if (valid && !isVerified(sha256)) {
+            valid = sha256.equals(Checksums.sha256(file));
+        }
+
+        synchronized (this) {
+            if (!valid) {
+                logger.warn("Cached export of {} is missing or corrupt, exporting again", step);
+                unpin(sha256);
+                removeContent(sha256);
+                saveIndex();
+                return null;
+            }
+            verified.add(sha256);
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        logger.info("Using cached export of {}: {}", step, file.getName());
+        return file;
+    }
+
+    /**
+     * Size of the cached export of the step, without verifying or pinning it
+     *
+     * @return The size in bytes, or -1 if the step is not cached
+     */
+    public synchronized long getSize(MigrationStep step) {
+        String sha256 = contentByKey.get(keyOf(step));
+        ContentEntry entry = sha256 != null ? contents.get(sha256) : null;
+        return entry != null ? entry.size : -1;
+    }
+
+    /**
+     * Create a temporary file in the cache directory to export into
+     */
+    public File newTempFile() throws IOException {
+        return File.createTempFile("export-", TEMP_SUFFIX, directory);
+    }
+
+    /**
+     * Add a completed export to the cache
+     * The temporary file is moved to its content address (or dropped if that content is already cached).
+     * The returned file is pinned against eviction until {@link #release(File)} is called.
+     *
+     * @param sha256 The hex encoded SHA-256 checksum computed while the file was written
+     */
+    public synchronized File put(MigrationStep step, File tempFile, String sha256) throws IOException {
+        File target = contentFile(sha256);
+        ContentEntry entry = contents.get(sha256);
+        if (entry != null && target.isFile()) {
+            Files.deleteIfExists(tempFile.toPath());
+        } else {
+            long size = tempFile.length();
+            move(tempFile, target);
+            if (entry != null) {
+                totalBytes -= entry.size;
+            }
+            entry = new ContentEntry(size);
+            contents.put(sha256, entry);
+            totalBytes += size;
+        }
+        verified.add(sha256);
+        entry.lastUsed = System.currentTimeMillis();
+        contentByKey.put(keyOf(step), sha256);
+        pin(sha256);
+
+        evict();
+        saveIndex();
+        return target;
+    }
+
+    /**
+     * Allow a file returned by {@link #get(MigrationStep)} or {@link #put} to be evicted again
+     */
+    public synchronized void release(File file) {
+        String name = file.getName();
+        if (name.endsWith(CONTENT_SUFFIX)) {
+            unpin(name.substring(0, name.length() - CONTENT_SUFFIX.length()));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        saveIndex();
+    }
+
+    private File contentFile(String sha256) {
+        return new File(directory, sha256 + CONTENT_SUFFIX);
+    }
+
+    private synchronized boolean isVerified(String sha256) {
+        return verified.contains(sha256);
+    }
+
+    private void pin(String sha256) {
+        pinned.merge(sha256, 1, Integer::sum);
+    }
+
+    private void unpin(String sha256) {
+        pinned.computeIfPresent(sha256, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Evict least recently used contents until the cache fits into the disk budget
+     */
+    private void evict() {
+        while (totalBytes > maxBytes) {
+            String victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, ContentEntry> entry : contents.entrySet()) {
+                if (!pinned.containsKey(entry.getKey()) && entry.getValue().lastUsed < oldest) {
+                    victim = entry.getKey();
+                    oldest = entry.getValue().lastUsed;
+                }
+            }
+            if (victim == null) {
+                logger.warn("Export cache exceeds its budget of {} MB, but all cached exports are in use",
+                           maxBytes / (1024 * 1024));
+                return;
+            }
+            logger.info("Evicting least recently used export from cache: {}", victim);
+            removeContent(victim);
+        }
+    }
+
+    private void removeContent(String sha256) {
+        ContentEntry entry = contents.remove(sha256);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+        verified.remove(sha256);
+        contentByKey.values().removeIf(sha256::equals);
+        File file = contentFile(sha256);
+        if (file.exists() && !file.delete()) {
+            logger.warn("Failed to delete cached export: {}", file.getAbsolutePath());
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        // Exports interrupted by a crash are never complete
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                Files.deleteIfExists(leftover.toPath());
+            }
+        }
+
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.isFile()) {
+            return;
+        }
+        CacheIndex index;
+        try {
+            index = objectMapper.readValue(indexFile, CacheIndex.class);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable export cache index {}: {}", indexFile.getAbsolutePath(), e.getMessage());
+            return;
+        }
+
+        for (Map.Entry<String, ContentEntry> entry : index.contents.entrySet()) {
+            File file = contentFile(entry.getKey());
+            if (file.isFile() && file.length() == entry.getValue().size) {
+                contents.put(entry.getKey(), entry.getValue());
+                totalBytes += entry.getValue().size;
+            }
+        }
+        for (Map.Entry<String, String> entry : index.keys.entrySet()) {
+            if (contents.containsKey(entry.getValue())) {
+                contentByKey.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and move it into place, so a crash never leaves a torn index
+     */
+    private void saveIndex() throws IOException {
+        CacheIndex index = new CacheIndex();
+        index.keys = new TreeMap<>(contentByKey);
+        index.contents = new TreeMap<>(contents);
+        File tempIndex = new File(directory, INDEX_FILE_NAME + ".tmp");
+        objectMapper.writeValue(tempIndex, index);
+        move(tempIndex, new File(directory, INDEX_FILE_NAME));
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class CacheIndex {
+        @JsonProperty("keys")
+        Map<String, String> keys = new TreeMap<>();
+
+        @JsonProperty("contents")
+        Map<String, ContentEntry> contents = new TreeMap<>();
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class ContentEntry {
+        @JsonProperty("size")
+        long size;
+
+        @JsonProperty("last_used")
+        long lastUsed;
+
+        ContentEntry() {
+        }
+
+        ContentEntry(long size) {
+            this.size = size;
+        }
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,581 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.client.BAWAsyncApiClient;
+import com.ibm.baw.migrator.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Catalog of the metadata of one system: its projects, branches, snapshots and toolkit dependencies
+ * Every component that reads metadata of a system goes through the same repository, so each piece of
+ * metadata is fetched at most once per run. The repository is thread-safe: a request for an entry that
+ * is already being fetched waits for that fetch instead of sending another one, and a failed fetch is
+ * not cached. The project catalog is downloaded once, on first use; all other responses are kept in a
+ * map of bounded size that evicts the least recently used entries first. With a cache directory,
+ * metadata is also kept on disk between runs and revalidated against the last update of the repository
+ * and of each container, see {@link MetadataStore}.
+ */
+public class MetadataRepository {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataRepository.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final BAWApiClient client;
+    private final BAWAsyncApiClient asyncClient;
+    private final MetadataStore store;
+    // Cache key -> response, completed or still in flight; guarded by itself
+    private final LinkedHashMap<String, CompletableFuture<Object>> entries;
+    // Replaced as a whole, so a reader never sees a catalog that is being cleared or filled
+    private volatile Catalog catalog;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong storeHits = new AtomicLong();
+
+    /**
+     * Fetches one response of the system
+     */
+    @FunctionalInterface
+    private interface Fetcher<T> {
+        T fetch() throws IOException;
+    }
+
+    public MetadataRepository(BAWApiClient client) {
+        this(client, null, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param asyncClient If not null, lookups made without blocking are fetched through it
+     * @param maxEntries Maximum number of branch, snapshot and dependency responses kept in memory
+     */
+    public MetadataRepository(BAWApiClient client, BAWAsyncApiClient asyncClient, int maxEntries) {
+        this(client, asyncClient, maxEntries, null);
+    }
+
+    /**
+     * @param asyncClient If not null, lookups made without blocking are fetched through it
+     * @param maxEntries Maximum number of branch, snapshot and dependency responses kept in memory
+     * @param cacheDirectory If not null, metadata is kept in this directory between runs
+     */
+    public MetadataRepository(BAWApiClient client, BAWAsyncApiClient asyncClient, int maxEntries, File cacheDirectory) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.client = client;
+        this.asyncClient = asyncClient;
+        this.store = cacheDirectory != null ? new MetadataStore(cacheDirectory, client) : null;
+        this.entries = new LinkedHashMap<String, CompletableFuture<Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Object>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The client used to fetch metadata from the system
+     */
+    public BAWApiClient getClient() {
+        return client;
+    }
+
+    /**
+     * Get the whole project catalog of the system
+     */
+    public List<Project> getProjects() throws IOException {
+        return loadCatalog().projects;
+    }
+
+    private Catalog loadCatalog() throws IOException {
+        Catalog current = catalog;
+        if (current != null) {
+            hits.incrementAndGet();
+            return current;
+        }
+        synchronized (this) {
+            if (catalog == null) {
+                List<Project> loaded = store != null ? store.getCatalog() : null;
+                if (loaded != null) {
+                    storeHits.incrementAndGet();
+                } else {
+                    logger.info("Loading project catalog of {}", client.getBaseUrl());
+                    loaded = new ArrayList<>();
+                    try {
+                        for (Project project : client.projects()) {
+                            loaded.add(project);
+                        }
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    fetches.incrementAndGet();
+                    if (store != null) {
+                        store.putCatalog(loaded);
+                    }
+                }
+                catalog = new Catalog(loaded);
+                logger.info("Loaded {} projects of {}", loaded.size(), client.getBaseUrl());
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Find a project of the catalog by its acronym
+     *
+     * @return The project, or null if the system has no project with this acronym
+     */
+    public Project findByAcronym(String acronym) throws IOException {
+        Catalog current = loadCatalog();
+        return acronym != null ? current.projectsByAcronym.get(acronym) : null;
+    }
+
+    /**
+     * Get a project by its ID, from the catalog if it is listed there
+     */
+    public Project getProject(String projectId) throws IOException {
+        Project project = loadCatalog().projectsById.get(projectId);
+        if (project != null) {
+            return project;
+        }
+        // Projects outside the catalog are rare and not worth storing on disk
+        return get("project:" + projectId, null, null, null, () -> client.getProject(projectId));
+    }
+
+    /**
+     * Get the branches of a project
+     *
+     * @return The branches; empty if the system returned none
+     */
+    public List<Branch> getBranches(String projectId) throws IOException {
+        return get("branches:" + projectId, MetadataStore.Kind.BRANCHES, containerOf(projectId), projectId,
+                   () -> branchesOf(client.getBranches(projectId)));
+    }
+
+    /**
+     * Get the snapshots of a branch of a project
+     *
+     * @return The snapshots; empty if the system returned none
+     */
+    public List<Snapshot> getSnapshots(String projectId, String branchName) throws IOException {
+        return get(snapshotsKey(projectId, branchName), MetadataStore.Kind.SNAPSHOTS, containerOf(projectId), branchName,
+                   () -> snapshotsOf(client.getSnapshots(projectId, branchName)));
+    }
+
+    /**
+     * Fetch the snapshot lists of several branches of a project concurrently
+     * Does nothing without an async client; the lists are then fetched one by one on first use.
+     */
+    public void prefetchSnapshots(String projectId, List<Branch> branches) throws IOException {
+        if (asyncClient == null || branches.size() < 2) {
+            return;
+        }
+        List<CompletableFuture<List<Snapshot>>> pending = new ArrayList<>();
+        for (Branch branch : branches) {
+            pending.add(getSnapshotsAsync(projectId, branch.getName()));
+        }
+        for (CompletableFuture<List<Snapshot>> future : pending) {
+            await(future);
+        }
+    }
+
+    /**
+     * Get the branches of a project without blocking; fetched through the async client if there is one
+     */
+    public CompletableFuture<List<Branch>> getBranchesAsync(String projectId) {
+        return getAsync("branches:" + projectId, MetadataStore.Kind.BRANCHES, () -> containerOf(projectId), projectId,
+                        () -> asyncClient.getBranches(projectId).thenApply(MetadataRepository::branchesOf),
+                        () -> branchesOf(client.getBranches(projectId)));
+    }
+
+    /**
+     * Get the snapshots of a branch of a project without blocking
+     */
+    public CompletableFuture<List<Snapshot>> getSnapshotsAsync(String projectId, String branchName) {
+        return getAsync(snapshotsKey(projectId, branchName), MetadataStore.Kind.SNAPSHOTS,
+                        () -> containerOf(projectId), branchName,
+                        () -> asyncClient.getSnapshots(projectId, branchName).thenApply(MetadataRepository::snapshotsOf),
+                        () -> snapshotsOf(client.getSnapshots(projectId, branchName)));
+    }
+
+    /**
+     * Get a snapshot with its direct dependencies without blocking
+     */
+    public CompletableFuture<Snapshot> getSnapshotWithDependenciesAsync(String containerAcronym, String versionAcronym) {
+        return getAsync("dependencies:" + containerAcronym + ":" + versionAcronym,
+                        MetadataStore.Kind.DEPENDENCIES, () -> containerAcronym, versionAcronym,
+                        () -> asyncClient.getSnapshotWithDependencies(containerAcronym, versionAcronym),
+                        () -> client.getSnapshotWithDependencies(containerAcronym, versionAcronym));
+    }
+
+    /**
+     * Get the complete tree of toolkits used by a snapshot without blocking
+     */
+    public CompletableFuture<WhatUsedResponse> getWhatUsedAsync(String containerAcronym, String versionAcronym) {
+        return getAsync("what_used:" + containerAcronym + ":" + versionAcronym,
+                        MetadataStore.Kind.WHAT_USED, () -> containerAcronym, versionAcronym,
+                        () -> asyncClient.getWhatUsed(containerAcronym, versionAcronym),
+                        () -> client.getWhatUsed(containerAcronym, versionAcronym));
+    }
+
+    /**
+     * Get the toolkits used by a whole branch without blocking
+     */
+    public CompletableFuture<WhatUsedResponse> getBranchWhatUsedAsync(String containerAcronym, String branchAcronym) {
+        return getAsync("branch_what_used:" + containerAcronym + ":" + branchAcronym,
+                        MetadataStore.Kind.BRANCH_WHAT_USED, () -> containerAcronym, branchAcronym,
+                        () -> asyncClient.getBranchWhatUsed(containerAcronym, branchAcronym),
+                        () -> client.getBranchWhatUsed(containerAcronym, branchAcronym));
+    }
+
+    /**
+     * Get a snapshot with its direct dependencies
+     */
+    public Snapshot getSnapshotWithDependencies(String containerAcronym, String versionAcronym) throws IOException {
+        return get("dependencies:" + containerAcronym + ":" + versionAcronym,
+                   MetadataStore.Kind.DEPENDENCIES, containerAcronym, versionAcronym,
+                   () -> client.getSnapshotWithDependencies(containerAcronym, versionAcronym));
+    }
+
+    /**
+     * Get the complete tree of toolkits used by a snapshot
+     */
+    public WhatUsedResponse getWhatUsed(String containerAcronym, String versionAcronym) throws IOException {
+        return get("what_used:" + containerAcronym + ":" + versionAcronym,
+                   MetadataStore.Kind.WHAT_USED, containerAcronym, versionAcronym,
+                   () -> client.getWhatUsed(containerAcronym, versionAcronym));
+    }
+
+    /**
+     * Get the toolkits used by a whole branch
+     */
+    public WhatUsedResponse getBranchWhatUsed(String containerAcronym, String branchAcronym) throws IOException {
+        return get("branch_what_used:" + containerAcronym + ":" + branchAcronym,
+                   MetadataStore.Kind.BRANCH_WHAT_USED, containerAcronym, branchAcronym,
+                   () -> client.getBranchWhatUsed(containerAcronym, branchAcronym));
+    }
+
+    /**
+     * Drop all metadata; it is fetched again on next use
+     */
+    public void clear() {
+        catalog = null;
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drop the project catalog only; it is downloaded again on next use
+     */
+    public void clearCatalog() {
+        catalog = null;
+    }
+
+    /**
+     * Drop the branches and snapshot lists of one project; they are fetched again on next use
+     */
+    public void clearProject(String projectId) {
+        String snapshotsPrefix = snapshotsKey(projectId, "");
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> key.equals("branches:" + projectId) || key.startsWith(snapshotsPrefix));
+        }
+    }
+
+    /**
+     * Drop all metadata except the catalog and the branches and snapshot lists of some projects
+     * Called once a migration plan is built, so the responses only the dependency resolution needed
+     * are not held for the rest of the run. Anything dropped is looked up again on next use.
+     *
+     * @param keptProjectIds The projects whose branches and snapshot lists stay in memory
+     */
+    public void release(Collection<String> keptProjectIds) {
+        Set<String> kept = new HashSet<>();
+        for (String projectId : keptProjectIds) {
+            kept.add("branches:" + projectId);
+        }
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> !kept.contains(key) && !isSnapshotsOf(key, keptProjectIds));
+        }
+        if (store != null) {
+            try {
+                store.release();
+            } catch (IOException e) {
+                logger.warn("Failed to save metadata cache: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the metadata fetched during this run to the cache directory, if there is one
+     */
+    public void close() throws IOException {
+        if (store != null) {
+            store.save();
+        }
+    }
+
+    /**
+     * Log how many lookups were answered from memory and from the cache directory
+     */
+    public void logStatistics() {
+        logger.info("Metadata of {}: {} lookups answered from memory, {} from disk, {} fetched", client.getBaseUrl(),
+                   hits.get(), storeHits.get(), fetches.get());
+    }
+
+    /**
+     * Project ID -> container acronym, needed to store metadata that is looked up by project ID
+     */
+    private String containerOf(String projectId) throws IOException {
+        if (store == null) {
+            return null;
+        }
+        Project project = loadCatalog().projectsById.get(projectId);
+        return project != null ? project.getAcronym() : null;
+    }
+
+    /**
+     * Look up an entry in memory, then on disk, and fetch it if it is in neither
+     *
+     * @param container The container the entry belongs to, or null if it is not stored on disk
+     * @param name The name of the entry within its container
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, MetadataStore.Kind kind, String container, String name,
+                      Fetcher<T> fetcher) throws IOException {
+        CompletableFuture<Object> future;
+        boolean owner = false;
+        synchronized (entries) {
+            future = entries.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                entries.put(key, future);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            hits.incrementAndGet();
+            return (T) await(future);
+        }
+
+        try {
+            T value = store != null && container != null ? (T) store.get(container, kind, name) : null;
+            if (value != null) {
+                storeHits.incrementAndGet();
+            } else {
+                fetches.incrementAndGet();
+                value = fetcher.fetch();
+                if (store != null && container != null) {
+                    store.put(container, kind, name, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException e) {
+            // Later lookups try again
+            discard(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Look up an entry like {@link #get}, without waiting for it to be fetched
+     * The entry is fetched through the async client, so any number of lookups can be outstanding without
+     * holding a thread each; without an async client it is fetched on the calling thread.
+     *
+     * @param container Supplies the container the entry belongs to, or null if it is not stored on disk
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> getAsync(String key, MetadataStore.Kind kind, Fetcher<String> container,
+                                              String name, Supplier<CompletableFuture<T>> asyncFetcher,
+                                              Fetcher<T> fetcher) {
+        if (asyncClient == null) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            try {
+                result.complete(get(key, kind, container.fetch(), name, fetcher));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        CompletableFuture<Object> future;
+        synchronized (entries) {
+            future = entries.get(key);
+            if (future != null) {
+                hits.incrementAndGet();
+                return future.thenApply(value -> (T) value);
+            }
+            future = new CompletableFuture<>();
+            entries.put(key, future);
+        }
+
+        CompletableFuture<Object> entry = future;
+        String storeContainer;
+        try {
+            storeContainer = store != null ? container.fetch() : null;
+        } catch (IOException | RuntimeException e) {
+            discard(key, entry);
+            entry.completeExceptionally(e);
+            return entry.thenApply(value -> (T) value);
+        }
+        CompletableFuture<Void> revalidated = storeContainer != null
+                ? revalidateAsync(storeContainer, kind, name)
+                : CompletableFuture.completedFuture(null);
+        revalidated.thenCompose(ignored -> {
+            // The store has what it needs to answer without a request
+            Object stored = storeContainer != null ? store.get(storeContainer, kind, name) : null;
+            if (stored != null) {
+                storeHits.incrementAndGet();
+                return CompletableFuture.completedFuture(stored);
+            }
+            fetches.incrementAndGet();
+            return asyncFetcher.get().thenApply(value -> {
+                if (storeContainer != null) {
+                    store.put(storeContainer, kind, name, value);
+                }
+                return (Object) value;
+            });
+        }).whenComplete((value, error) -> {
+            if (error != null) {
+                // Later lookups try again
+                discard(key, entry);
+                entry.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                                            ? error.getCause() : error);
+                return;
+            }
+            entry.complete(value);
+        });
+        return entry.thenApply(value -> (T) value);
+    }
+
+    /**
+     * Request through the async client the last updates the store needs to answer a lookup
+     * A last update that is not available leaves the entry uncached, as in a blocking lookup.
+     */
+    private CompletableFuture<Void> revalidateAsync(String container, MetadataStore.Kind kind, String name) {
+        CompletableFuture<Void> validated = CompletableFuture.completedFuture(null);
+        if (store.needsVersionsLastUpdate(container)) {
+            validated = asyncClient.getVersionsLastUpdate(container).handle((versionsLastUpdate, error) -> {
+                if (error != null) {
+                    logger.debug("Last update of container {} not available, its metadata is not cached: {}",
+                                container, error.getMessage());
+                }
+                store.putVersionsLastUpdate(container, error == null ? versionsLastUpdate : null);
+                return null;
+            });
+        }
+        return validated.thenCompose(ignored -> {
+            String branch = store.pendingBranch(container, kind, name);
+            if (branch == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return asyncClient.getVersionsLastUpdate(container, branch).handle((branchLastUpdate, error) -> {
+                if (error != null) {
+                    logger.debug("Last update of branch {} of container {} not available, its metadata is not cached: {}",
+                                branch, container, error.getMessage());
+                }
+                store.putBranchLastUpdate(container, branch, error == null ? branchLastUpdate : null);
+                return null;
+            });
+        });
+    }
+
+    private void discard(String key, CompletableFuture<Object> future) {
+        synchronized (entries) {
+            entries.remove(key, future);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for metadata");
+        }
+    }
+
+    /**
+     * The project catalog with its lookup maps; never changed once built
+     */
+    private static class Catalog {
+        private final List<Project> projects;
+        private final Map<String, Project> projectsById = new HashMap<>();
+        private final Map<String, Project> projectsByAcronym = new HashMap<>();
+
+        Catalog(List<Project> projects) {
+            this.projects = Collections.unmodifiableList(projects);
+            for (Project project : projects) {
+                if (project.getId() != null) {
+                    projectsById.put(project.getId(), project);
+                }
+                if (project.getAcronym() != null) {
+                    projectsByAcronym.put(project.getAcronym(), project);
+                }
+            }
+        }
+    }
+
+    private static String snapshotsKey(String projectId, String branchName) {
+        return "snapshots:" + projectId + ":" + branchName;
+    }
+
+    private static boolean isSnapshotsOf(String key, Collection<String> projectIds) {
+        for (String projectId : projectIds) {
+            if (key.startsWith(snapshotsKey(projectId, ""))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Branch> branchesOf(BranchesResponse response) {
+        return response.getBranches() != null
+                ? Collections.unmodifiableList(response.getBranches())
+                : Collections.<Branch>emptyList();
+    }
+
+    private static List<Snapshot> snapshotsOf(SnapshotsResponse response) {
+        return response.getSnapshots() != null
+                ? Collections.unmodifiableList(response.getSnapshots())
+                : Collections.<Snapshot>emptyList();
+    }
+}
+
+// Made with Bob
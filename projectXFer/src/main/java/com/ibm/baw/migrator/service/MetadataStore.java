@@ -0,0 +1,580 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.model.Branch;
+import com.ibm.baw.migrator.model.Project;
+import com.ibm.baw.migrator.model.Snapshot;
+import com.ibm.baw.migrator.model.WhatUsedResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Metadata of one system kept on disk between runs
+ * The catalog file holds the project catalog together with the response of containers/last_update at the
+ * time it was downloaded. One file per container holds its branches, snapshot lists and dependency
+ * responses together with the response of its versions/last_update. If the repository has not changed
+ * since the catalog was stored, everything on disk is used without further requests; otherwise each
+ * container is revalidated with one request when it is first used. That request only covers the default
+ * track of the container, so a revalidated container does not reuse its stored branch list, and the
+ * snapshot lists and branch what_used responses of other tracks are checked with the last update of
+ * their own track, which is stored with them. The last_update responses are compared as a whole, so
+ * their layout does not matter. Files are gzip-compressed JSON, written to a
+ * temporary file and moved into place on {@link #save()}.
+ */
+class MetadataStore {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataStore.class);
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String CATALOG_FILE_NAME = "catalog.json.gz";
+    private static final String CONTAINERS_DIRECTORY_NAME = "containers";
+
+    /**
+     * Kind of a stored response; each kind is stored per container under a name
+     */
+    enum Kind {
+        // Name: project ID
+        BRANCHES,
+        // Name: branch name
+        SNAPSHOTS,
+        // Name: version acronym
+        DEPENDENCIES,
+        // Name: version acronym
+        WHAT_USED,
+        // Name: branch acronym
+        BRANCH_WHAT_USED
+    }
+
+    private final File directory;
+    private final BAWApiClient client;
+    private final ObjectMapper objectMapper;
+    private final Map<String, ContainerRecord> containers = new ConcurrentHashMap<>();
+    private boolean checked = false;
+    private boolean enabled = true;
+    // Whether containers/last_update is the same as when the catalog was stored
+    private boolean unchanged = false;
+    private String lastUpdate;
+    private CatalogFile catalog;
+    private boolean catalogDirty = false;
+    // Container acronym -> name of its default branch, from the catalog
+    private volatile Map<String, String> defaultBranches = Collections.emptyMap();
+
+    /**
+     * @param cacheDirectory Root of the metadata cache; every system gets a directory of its own
+     */
+    MetadataStore(File cacheDirectory, BAWApiClient client) {
+        this.directory = new File(cacheDirectory, client.getBaseUrl().replaceAll("[^A-Za-z0-9.-]", "_"));
+        this.client = client;
+        this.objectMapper = new ObjectMapper();
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    /**
+     * Get the stored project catalog if the repository has not changed since it was stored
+     *
+     * @return The catalog, or null if it has to be downloaded
+     */
+    synchronized List<Project> getCatalog() {
+        if (!check() || !unchanged) {
+            return null;
+        }
+        return catalog.projects;
+    }
+
+    /**
+     * Store a downloaded project catalog
+     */
+    synchronized void putCatalog(List<Project> projects) {
+        if (!check() || lastUpdate == null) {
+            return;
+        }
+        catalog = new CatalogFile();
+        catalog.lastUpdate = lastUpdate;
+        catalog.projects = new ArrayList<>(projects);
+        catalogDirty = true;
+        indexDefaultBranches();
+    }
+
+    /**
+     * Get a stored response of a container, revalidating the container on first use
+     *
+     * @return The response, or null if it has to be fetched
+     */
+    Object get(String container, Kind kind, String name) {
+        ContainerRecord record = record(container);
+        if (record == null) {
+            return null;
+        }
+        String branch = trackOf(container, kind, name);
+        synchronized (record) {
+            Object value = data(record).map(kind).get(name);
+            if (value != null && record.current) {
+                return value;
+            }
+            if (branch == null) {
+                // A branch created on another track does not change the last update of the default track
+                return kind == Kind.BRANCHES ? null : value;
+            }
+        }
+        // Requested on a miss as well, so that the response fetched next is stored with a stamp older than itself
+        String branchLastUpdate = branchLastUpdate(record, branch);
+        synchronized (record) {
+            ContainerFile data = data(record);
+            Object value = data.map(kind).get(name);
+            if (value == null) {
+                return null;
+            }
+            if (branchLastUpdate == null || !branchLastUpdate.equals(data.branchLastUpdates.get(branch))) {
+                logger.debug("Cached {} of branch {} of container {} is out of date", kind, branch, container);
+                return null;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Whether a container still has to be revalidated with the last update of its versions
+     * A caller that does not block requests it and hands it over with {@link #putVersionsLastUpdate};
+     * otherwise {@link #get} requests it on first use.
+     */
+    boolean needsVersionsLastUpdate(String container) {
+        ContainerRecord record = record(container);
+        if (record == null || unchanged) {
+            return false;
+        }
+        synchronized (record) {
+            return record.data == null && record.releasedLastUpdate == null;
+        }
+    }
+
+    /**
+     * Revalidate a container with the last update of its versions, unless it is validated already
+     *
+     * @param versionsLastUpdate The last update, or null if it is not available
+     */
+    void putVersionsLastUpdate(String container, String versionsLastUpdate) {
+        ContainerRecord record = record(container);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            if (record.data == null && record.releasedLastUpdate == null) {
+                record.data = validate(container, read(containerFile(container), ContainerFile.class), versionsLastUpdate);
+                record.current = unchanged && record.data.lastUpdate != null;
+            }
+        }
+    }
+
+    /**
+     * The branch whose last update a lookup still needs, or null if it can be answered without a request
+     * A caller that does not block requests it and hands it over with {@link #putBranchLastUpdate}.
+     */
+    String pendingBranch(String container, Kind kind, String name) {
+        ContainerRecord record = record(container);
+        String branch = record != null ? trackOf(container, kind, name) : null;
+        if (branch == null) {
+            return null;
+        }
+        synchronized (record) {
+            if (record.branchLastUpdates.containsKey(branch) || (record.current && data(record).map(kind).containsKey(name))) {
+                return null;
+            }
+        }
+        return branch;
+    }
+
+    /**
+     * Record the last update of a branch requested by the caller; a last update recorded earlier is kept
+     *
+     * @param branchLastUpdate The last update, or null if it is not available
+     */
+    void putBranchLastUpdate(String container, String branch, String branchLastUpdate) {
+        ContainerRecord record = record(container);
+        if (record != null) {
+            putBranchLastUpdate(record, branch, branchLastUpdate);
+        }
+    }
+
+    /**
+     * Store a fetched response of a container
+     */
+    @SuppressWarnings("unchecked")
+    void put(String container, Kind kind, String name, Object value) {
+        ContainerRecord record = record(container);
+        if (record == null) {
+            return;
+        }
+        String branch = trackOf(container, kind, name);
+        synchronized (record) {
+            ContainerFile data = data(record);
+            if (data.lastUpdate == null) {
+                return;
+            }
+            if (branch != null) {
+                String branchLastUpdate = record.branchLastUpdates.get(branch);
+                if (branchLastUpdate == null) {
+                    // Could not be revalidated in a later run
+                    return;
+                }
+                data.branchLastUpdates.put(branch, branchLastUpdate);
+            }
+            ((Map<String, Object>) data.map(kind)).put(name, value);
+            record.dirty = true;
+        }
+    }
+
+    /**
+     * Write the catalog and every container that changed during this run
+     */
+    synchronized void save() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        int written = 0;
+        if (catalogDirty) {
+            write(new File(directory, CATALOG_FILE_NAME), catalog);
+            catalogDirty = false;
+            written++;
+        }
+        for (ContainerRecord record : containers.values()) {
+            synchronized (record) {
+                if (record.dirty && record.data != null) {
+                    write(containerFile(record.container), record.data);
+                    record.dirty = false;
+                    written++;
+                }
+            }
+        }
+        if (written > 0) {
+            logger.info("Saved {} metadata cache files to {}", written, directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Write every changed container and drop the stored responses from memory
+     * A released container is read back from its file on next use, without being revalidated.
+     */
+    synchronized void release() throws IOException {
+        save();
+        for (ContainerRecord record : containers.values()) {
+            synchronized (record) {
+                if (record.data != null && !record.dirty && record.data.lastUpdate != null) {
+                    record.releasedLastUpdate = record.data.lastUpdate;
+                    record.data = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare containers/last_update with the stored catalog, once
+     *
+     * @return false if the server does not support last_update and nothing can be stored
+     */
+    private synchronized boolean check() {
+        if (checked) {
+            return enabled;
+        }
+        checked = true;
+        try {
+            lastUpdate = client.getContainersLastUpdate();
+        } catch (IOException e) {
+            logger.warn("Metadata cache disabled, the last update of the repository is not available: {}", e.getMessage());
+            enabled = false;
+            return false;
+        }
+        catalog = read(new File(directory, CATALOG_FILE_NAME), CatalogFile.class);
+        unchanged = catalog != null && catalog.projects != null && lastUpdate.equals(catalog.lastUpdate);
+        if (unchanged) {
+            indexDefaultBranches();
+        }
+        logger.info(unchanged
+                    ? "Repository of {} unchanged since the metadata cache was written, using cached metadata"
+                    : "Repository of {} changed since the metadata cache was written, revalidating containers on use",
+                    client.getBaseUrl());
+        return true;
+    }
+
+    /**
+     * The record of a container; its data is only read through {@link #data(ContainerRecord)}
+     */
+    private ContainerRecord record(String container) {
+        if (!check()) {
+            return null;
+        }
+        return containers.computeIfAbsent(container, ContainerRecord::new);
+    }
+
+    /**
+     * The data of a container, validated on first use and read back from its file after a release
+     * Called with the record locked; the data can be released again once the lock is given up.
+     */
+    private ContainerFile data(ContainerRecord record) {
+        if (record.data != null) {
+            return record.data;
+        }
+        if (record.releasedLastUpdate != null) {
+            // Validated earlier in this run; the file is current unless it could not be written
+            ContainerFile stored = read(containerFile(record.container), ContainerFile.class);
+            record.data = stored != null && record.releasedLastUpdate.equals(stored.lastUpdate)
+                    ? stored : new ContainerFile(record.releasedLastUpdate);
+            record.releasedLastUpdate = null;
+        } else {
+            record.data = validate(record.container);
+            record.current = unchanged && record.data.lastUpdate != null;
+        }
+        return record.data;
+    }
+
+    /**
+     * The branch whose last update a stored response depends on, or null if the default track covers it
+     * Branches are identified by name, which the API also accepts as their acronym.
+     */
+    private String trackOf(String container, Kind kind, String name) {
+        if (kind != Kind.SNAPSHOTS && kind != Kind.BRANCH_WHAT_USED) {
+            return null;
+        }
+        return name.equals(defaultBranches.get(container)) ? null : name;
+    }
+
+    /**
+     * The last update of a branch of a container, requested once per run; null if it is not available
+     * The request is sent without the record locked, so other lookups of the container do not wait for it.
+     */
+    private String branchLastUpdate(ContainerRecord record, String branch) {
+        synchronized (record) {
+            if (record.branchLastUpdates.containsKey(branch)) {
+                return record.branchLastUpdates.get(branch);
+            }
+        }
+        String branchLastUpdate = null;
+        try {
+            branchLastUpdate = client.getVersionsLastUpdate(record.container, branch);
+        } catch (IOException e) {
+            logger.debug("Last update of branch {} of container {} not available, its metadata is not cached: {}",
+                        branch, record.container, e.getMessage());
+        }
+        return putBranchLastUpdate(record, branch, branchLastUpdate);
+    }
+
+    /**
+     * @return The last update of the branch that is kept, which is the first one recorded
+     */
+    private static String putBranchLastUpdate(ContainerRecord record, String branch, String branchLastUpdate) {
+        synchronized (record) {
+            if (!record.branchLastUpdates.containsKey(branch)) {
+                record.branchLastUpdates.put(branch, branchLastUpdate);
+            }
+            return record.branchLastUpdates.get(branch);
+        }
+    }
+
+    private void indexDefaultBranches() {
+        Map<String, String> index = new HashMap<>();
+        for (Project project : catalog.projects) {
+            if (project.getAcronym() != null && project.getDefaultBranchName() != null) {
+                index.put(project.getAcronym(), project.getDefaultBranchName());
+            }
+        }
+        defaultBranches = index;
+    }
+
+    /**
+     * Load the stored data of a container if it is still current, or start empty data for it
+     */
+    private ContainerFile validate(String container) {
+        ContainerFile stored = read(containerFile(container), ContainerFile.class);
+        if (stored != null && unchanged && stored.lastUpdate != null) {
+            return stored;
+        }
+        String versionsLastUpdate;
+        try {
+            versionsLastUpdate = client.getVersionsLastUpdate(container);
+        } catch (IOException e) {
+            logger.debug("Last update of container {} not available, its metadata is not cached: {}",
+                        container, e.getMessage());
+            versionsLastUpdate = null;
+        }
+        return validate(container, stored, versionsLastUpdate);
+    }
+
+    /**
+     * Keep the stored data of a container if it has the given last update, or start empty data for it
+     *
+     * @param versionsLastUpdate The last update of the versions of the container, or null if it is not available
+     */
+    private static ContainerFile validate(String container, ContainerFile stored, String versionsLastUpdate) {
+        if (versionsLastUpdate == null) {
+            return new ContainerFile(null);
+        }
+        if (stored != null && versionsLastUpdate.equals(stored.lastUpdate)) {
+            logger.debug("Cached metadata of container {} is current", container);
+            return stored;
+        }
+        logger.debug("Cached metadata of container {} is missing or out of date", container);
+        return new ContainerFile(versionsLastUpdate);
+    }
+
+    private File containerFile(String container) {
+        return new File(new File(directory, CONTAINERS_DIRECTORY_NAME),
+                        container.replaceAll("[^A-Za-z0-9.-]", "_") + ".json.gz");
+    }
+
+    private <T> T read(File file, Class<T> type) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            T value = objectMapper.readValue(in, type);
+            if (value instanceof Versioned && ((Versioned) value).formatVersion() != FORMAT_VERSION) {
+                return null;
+            }
+            return value;
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable metadata cache file: {}: {}", file.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(File file, Object value) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create metadata cache directory: " + parent.getAbsolutePath());
+        }
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            objectMapper.writeValue(out, value);
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * In-memory state of one container; data is null until the container has been validated and after a
+     * release, and is guarded by the record
+     */
+    private static class ContainerRecord {
+        private final String container;
+        private ContainerFile data;
+        private boolean dirty;
+        // Whether the data is current because the whole repository is unchanged
+        private boolean current;
+        // Last update of the data dropped from memory by release(), or null if it was not released
+        private String releasedLastUpdate;
+        // Branch name -> its last update in this run, or null if not available
+        private final Map<String, String> branchLastUpdates = new HashMap<>();
+
+        ContainerRecord(String container) {
+            this.container = container;
+        }
+    }
+
+    interface Versioned {
+        int formatVersion();
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class CatalogFile implements Versioned {
+        @JsonProperty("format_version")
+        int formatVersion = FORMAT_VERSION;
+
+        @JsonProperty("last_update")
+        String lastUpdate;
+
+        @JsonProperty("projects")
+        List<Project> projects;
+
+        @Override
+        public int formatVersion() {
+            return formatVersion;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class ContainerFile implements Versioned {
+        @JsonProperty("format_version")
+        int formatVersion = FORMAT_VERSION;
+
+        @JsonProperty("last_update")
+        String lastUpdate;
+
+        @JsonProperty("branches")
+        Map<String, List<Branch>> branches = new HashMap<>();
+
+        @JsonProperty("snapshots")
+        Map<String, List<Snapshot>> snapshots = new HashMap<>();
+
+        @JsonProperty("dependencies")
+        Map<String, Snapshot> dependencies = new HashMap<>();
+
+        @JsonProperty("what_used")
+        Map<String, WhatUsedResponse> whatUsed = new HashMap<>();
+
+        @JsonProperty("branch_what_used")
+        Map<String, WhatUsedResponse> branchWhatUsed = new HashMap<>();
+
+        // Branch name -> last update of the branch when its snapshots or what_used were fetched
+        @JsonProperty("branch_last_updates")
+        Map<String, String> branchLastUpdates = new HashMap<>();
+
+        ContainerFile() {
+        }
+
+        ContainerFile(String lastUpdate) {
+            this.lastUpdate = lastUpdate;
+        }
+
+        Map<String, ?> map(Kind kind) {
+            switch (kind) {
+                case BRANCHES:
+                    return branches;
+                case SNAPSHOTS:
+                    return snapshots;
+                case DEPENDENCIES:
+                    return dependencies;
+                case WHAT_USED:
+                    return whatUsed;
+                default:
+                    return branchWhatUsed;
+            }
+        }
+
+        @Override
+        public int formatVersion() {
+            return formatVersion;
+        }
+    }
+}
+
+// Made with Bob
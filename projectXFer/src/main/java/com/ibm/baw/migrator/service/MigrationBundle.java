@@ -0,0 +1,424 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.baw.migrator.model.MigrationStep;
+import com.ibm.baw.migrator.model.Project;
+import com.ibm.baw.migrator.model.Snapshot;
+import com.ibm.baw.migrator.model.ToolkitDependency;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Portable migration bundle: exported .twx files plus a manifest with the ordered plan
+ * The manifest lists the toolkits layer by layer and the Process Apps, each with its snapshots in import
+ * order and, for every snapshot, the branch, the file name, the size and the SHA-256 checksum. A bundle
+ * is written by an export-only run and read by an import-only run, so that the source and the target do
+ * not have to be reachable at the same time. Snapshots that failed to export are listed without a file;
+ * importing them fails, which skips whatever depends on them just like a failed export would.
+ */
+public class MigrationBundle {
+    private static final Logger logger = LoggerFactory.getLogger(MigrationBundle.class);
+
+    public static final String MANIFEST_FILE_NAME = "bundle-manifest.json";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File directory;
+    private final Manifest manifest;
+    // Step key -> snapshot entry
+    private final Map<String, SnapshotEntry> entries = new HashMap<>();
+    // Step keys whose file has been verified against the manifest
+    private final Set<String> verified = new HashSet<>();
+
+    private MigrationBundle(File directory, Manifest manifest) {
+        this.directory = directory;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Start a new bundle in the given directory
+     *
+     * @param source The base URL of the source system, for information only
+     */
+    public static MigrationBundle create(File directory, String source) {
+        Manifest manifest = new Manifest();
+        manifest.source = source;
+        manifest.created = Instant.now().toString();
+        return new MigrationBundle(directory, manifest);
+    }
+
+    /**
+     * Open the bundle in the given directory
+     */
+    public static MigrationBundle read(File directory) throws IOException {
+        File manifestFile = new File(directory, MANIFEST_FILE_NAME);
+        if (!manifestFile.isFile()) {
+            throw new IOException("No migration bundle found, missing manifest: " + manifestFile.getAbsolutePath());
+        }
+        Manifest manifest = new ObjectMapper().readValue(manifestFile, Manifest.class);
+        if (manifest.formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported migration bundle format version: " + manifest.formatVersion);
+        }
+        MigrationBundle bundle = new MigrationBundle(directory, manifest);
+        for (ProjectEntry entry : manifest.toolkits) {
+            bundle.index(entry);
+        }
+        for (ProjectEntry entry : manifest.processApps) {
+            bundle.index(entry);
+        }
+        logger.info("Opened migration bundle {} exported from {} at {}: {} toolkits, {} Process Apps",
+                   directory.getAbsolutePath(), manifest.source, manifest.created,
+                   manifest.toolkits.size(), manifest.processApps.size());
+        return bundle;
+    }
+
+    /**
+     * Add the toolkits of a plan, in plan order
+     */
+    public void addToolkits(MigrationPlan plan) {
+        for (int i = 0; i < plan.getLayerCount(); i++) {
+            for (int toolkit : plan.getLayer(i)) {
+                ProjectEntry entry = ProjectEntry.of(plan.getToolkit(toolkit));
+                entry.layer = i;
+                for (int required : plan.getDependencies(toolkit)) {
+                    entry.dependsOn.add(plan.getToolkit(required).getId());
+                }
+                entry.branches = plan.getBranchNames(toolkit);
+                manifest.toolkits.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Add a Process App of a plan with the toolkits it needs
+     */
+    public void addProcessApp(Project processApp, MigrationPlan plan) {
+        ProjectEntry entry = ProjectEntry.of(processApp);
+        for (int required : plan.getRequiredToolkits(processApp)) {
+            entry.dependsOn.add(plan.getToolkit(required).getId());
+        }
+        manifest.processApps.add(entry);
+    }
+
+    /**
+     * Add an exported snapshot; the file is linked or copied into the bundle directory if it is not there yet
+     *
+     * @param sha256 The hex encoded SHA-256 checksum of the file
+     */
+    public synchronized void addExport(MigrationStep step, File exportedFile, String sha256, String fileName) throws IOException {
+        File bundleFile = new File(directory, fileName);
+        if (!bundleFile.getAbsoluteFile().equals(exportedFile.getAbsoluteFile())) {
+            // A hard link avoids copying exports that are in an export cache on the same file system
+            Files.deleteIfExists(bundleFile.toPath());
+            try {
+                Files.createLink(bundleFile.toPath(), exportedFile.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(exportedFile.toPath(), bundleFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        SnapshotEntry entry = SnapshotEntry.of(step);
+        entry.file = fileName;
+        entry.size = bundleFile.length();
+        entry.sha256 = sha256;
+        findProject(step.getProject()).snapshots.add(entry);
+    }
+
+    /**
+     * Add a snapshot that could not be exported, so that the import knows it is missing
+     */
+    public synchronized void addFailedExport(MigrationStep step) {
+        findProject(step.getProject()).snapshots.add(SnapshotEntry.of(step));
+    }
+
+    /**
+     * Write the manifest to a temporary file and move it into place, so a crash never leaves a torn manifest
+     * The snapshots of every project are kept in the order in which they were planned.
+     */
+    public synchronized void save(Map<String, List<MigrationStep>> stepsByProject) throws IOException {
+        for (ProjectEntry entry : allProjects()) {
+            List<MigrationStep> steps = stepsByProject.getOrDefault(entry.id, Collections.emptyList());
+            Map<String, Integer> order = new HashMap<>();
+            for (int i = 0; i < steps.size(); i++) {
+                order.put(steps.get(i).getKey(), i);
+            }
+            entry.snapshots.sort(Comparator.comparing(snapshot -> order.getOrDefault(snapshot.key(entry.id), Integer.MAX_VALUE)));
+        }
+        File tempManifest = new File(directory, MANIFEST_FILE_NAME + ".tmp");
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(tempManifest, manifest);
+        try {
+            Files.move(tempManifest.toPath(), new File(directory, MANIFEST_FILE_NAME).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempManifest.toPath(), new File(directory, MANIFEST_FILE_NAME).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.info("Wrote migration bundle manifest: {}", new File(directory, MANIFEST_FILE_NAME).getAbsolutePath());
+    }
+
+    /**
+     * Rebuild the migration plan from the manifest
+     */
+    public MigrationPlan getPlan() {
+        Map<String, ToolkitDependency> toolkits = new HashMap<>();
+        List<List<ToolkitDependency>> layers = new ArrayList<>();
+        for (ProjectEntry entry : manifest.toolkits) {
+            ToolkitDependency dependency = new ToolkitDependency(entry.toProject());
+            for (String branch : entry.branches) {
+                dependency.addBranchSnapshots(branch, new ArrayList<>());
+            }
+            for (SnapshotEntry snapshot : entry.snapshots) {
+                dependency.getBranchSnapshots().computeIfAbsent(snapshot.branch, branch -> new ArrayList<>())
+                        .add(snapshot.toSnapshot());
+            }
+            toolkits.put(entry.id, dependency);
+            while (layers.size() <= entry.layer) {
+                layers.add(new ArrayList<>());
+            }
+            layers.get(entry.layer).add(dependency);
+        }
+        for (ProjectEntry entry : manifest.toolkits) {
+            for (String id : entry.dependsOn) {
+                toolkits.get(entry.id).addDependency(toolkits.get(id));
+            }
+        }
+
+        List<Project> processApps = new ArrayList<>();
+        Map<String, Set<ToolkitDependency>> requiredToolkits = new HashMap<>();
+        for (ProjectEntry entry : manifest.processApps) {
+            processApps.add(entry.toProject());
+            Set<ToolkitDependency> required = new LinkedHashSet<>();
+            for (String id : entry.dependsOn) {
+                required.add(toolkits.get(id));
+            }
+            requiredToolkits.put(entry.id, required);
+        }
+        return new MigrationPlan(processApps, layers, requiredToolkits);
+    }
+
+    /**
+     * The snapshots of a Process App in the bundle, in import order
+     */
+    public List<MigrationStep> getSteps(Project processApp) {
+        List<MigrationStep> steps = new ArrayList<>();
+        for (ProjectEntry entry : manifest.processApps) {
+            if (entry.id.equals(processApp.getId())) {
+                for (SnapshotEntry snapshot : entry.snapshots) {
+                    steps.add(new MigrationStep(processApp, snapshot.toSnapshot(), snapshot.branch));
+                }
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Get the exported file of a step, verified against the size and checksum in the manifest
+     *
+     * @throws IOException If the step was not exported or its file is missing or corrupt
+     */
+    public File getFile(MigrationStep step) throws IOException {
+        SnapshotEntry entry = entries.get(step.getKey());
+        if (entry == null || entry.file == null) {
+            throw new IOException("Snapshot was not exported to the migration bundle: " + step);
+        }
+        File file = new File(directory, entry.file);
+        if (!file.isFile() || file.length() != entry.size) {
+            throw new IOException("Export of " + step + " is missing or incomplete in the migration bundle: " + file.getName());
+        }
+        synchronized (this) {
+            if (verified.contains(step.getKey())) {
+                return file;
+            }
+        }
+        if (!entry.sha256.equals(Checksums.sha256(file))) {
+            throw new IOException("Checksum of " + file.getName() + " does not match the migration bundle manifest");
+        }
+        synchronized (this) {
+            verified.add(step.getKey());
+        }
+        return file;
+    }
+
+    private void index(ProjectEntry project) {
+        for (SnapshotEntry snapshot : project.snapshots) {
+            entries.put(snapshot.key(project.id), snapshot);
+        }
+    }
+
+    private ProjectEntry findProject(Project project) {
+        for (ProjectEntry entry : allProjects()) {
+            if (entry.id.equals(project.getId())) {
+                return entry;
+            }
+        }
+        throw new IllegalArgumentException("Project is not part of the migration bundle: " + project.getDisplayName());
+    }
+
+    private List<ProjectEntry> allProjects() {
+        List<ProjectEntry> projects = new ArrayList<>(manifest.toolkits);
+        projects.addAll(manifest.processApps);
+        return projects;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class Manifest {
+        @JsonProperty("format_version")
+        int formatVersion = FORMAT_VERSION;
+
+        @JsonProperty("source")
+        String source;
+
+        @JsonProperty("created")
+        String created;
+
+        // In plan order: leaf-first, layer by layer
+        @JsonProperty("toolkits")
+        List<ProjectEntry> toolkits = new ArrayList<>();
+
+        @JsonProperty("process_apps")
+        List<ProjectEntry> processApps = new ArrayList<>();
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class ProjectEntry {
+        @JsonProperty("id")
+        String id;
+
+        @JsonProperty("acronym")
+        String acronym;
+
+        @JsonProperty("name")
+        String name;
+
+        @JsonProperty("display_name")
+        String displayName;
+
+        @JsonProperty("type")
+        String type;
+
+        @JsonProperty("toolkit")
+        boolean toolkit;
+
+        @JsonProperty("default_branch_name")
+        String defaultBranchName;
+
+        @JsonProperty("layer")
+        int layer;
+
+        // Toolkits: direct dependencies; Process Apps: all required toolkits
+        @JsonProperty("depends_on")
+        List<String> dependsOn = new ArrayList<>();
+
+        @JsonProperty("branches")
+        List<String> branches = new ArrayList<>();
+
+        // In import order
+        @JsonProperty("snapshots")
+        List<SnapshotEntry> snapshots = new ArrayList<>();
+
+        static ProjectEntry of(Project project) {
+            ProjectEntry entry = new ProjectEntry();
+            entry.id = project.getId();
+            entry.acronym = project.getAcronym();
+            entry.name = project.getName();
+            entry.displayName = project.getDisplayName();
+            entry.type = project.getType();
+            entry.toolkit = project.isToolkit();
+            entry.defaultBranchName = project.getDefaultBranchName();
+            return entry;
+        }
+
+        Project toProject() {
+            Project project = new Project();
+            project.setId(id);
+            project.setAcronym(acronym);
+            project.setFullName(name);
+            project.setDisplayName(displayName);
+            project.setType(type);
+            project.setToolkit(toolkit);
+            project.setDefaultBranchName(defaultBranchName);
+            return project;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class SnapshotEntry {
+        @JsonProperty("branch")
+        String branch;
+
+        @JsonProperty("id")
+        String id;
+
+        @JsonProperty("name")
+        String name;
+
+        @JsonProperty("display_name")
+        String displayName;
+
+        @JsonProperty("creation_date")
+        String creationDate;
+
+        // Relative to the bundle directory; null if the export failed
+        @JsonProperty("file")
+        String file;
+
+        @JsonProperty("size")
+        long size;
+
+        @JsonProperty("sha256")
+        String sha256;
+
+        static SnapshotEntry of(MigrationStep step) {
+            Snapshot snapshot = step.getSnapshot();
+            SnapshotEntry entry = new SnapshotEntry();
+            entry.branch = step.getBranchName();
+            entry.id = snapshot.getId();
+            entry.name = snapshot.getName();
+            entry.displayName = snapshot.getDisplayName();
+            entry.creationDate = snapshot.getCreationDate();
+            return entry;
+        }
+
+        Snapshot toSnapshot() {
+            Snapshot snapshot = new Snapshot();
+            snapshot.setId(id);
+            snapshot.setName(name);
+            snapshot.setDisplayName(displayName);
+            snapshot.setBranchName(branch);
+            snapshot.setCreationDate(creationDate);
+            return snapshot;
+        }
+
+        /**
+         * Same as {@link MigrationStep#getKey()} of the step this entry stands for
+         */
+        String key(String projectId) {
+            return projectId + "|" + branch + "|" + name;
+        }
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,252 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.client.LinkMeasurement;
+import com.ibm.baw.migrator.model.MigrationStep;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Result of a dry run: the ordered plan of every target and an estimate of its cost
+ * Sizes are known for snapshots that are in the export cache or in the journal; the others are counted
+ * at the average known size. If no size is known at all, e.g. on a first run, the bytes and the duration
+ * are reported as unknown. The duration is estimated from the measured latency and bandwidth of the
+ * source and the targets and covers the planning and the transfers. The bandwidth is a rough lower bound,
+ * which lengthens the transfers, while the time a target spends processing an import is not included,
+ * so the duration is a rough estimate rather than a bound.
+ */
+public class MigrationEstimate {
+    private static final Logger logger = LoggerFactory.getLogger(MigrationEstimate.class);
+
+    private final boolean overlapped;
+    // Step key -> known size in bytes, or -1; every snapshot is exported once for all targets
+    private final Map<String, Long> exports = new LinkedHashMap<>();
+    // Sum and number of the known sizes of the exports
+    private long knownBytes;
+    private int knownSizes;
+    // Target name -> snapshots to import, in plan order
+    private final Map<String, List<MigrationStep>> imports = new LinkedHashMap<>();
+    private final Map<String, LinkMeasurement> targetLinks = new LinkedHashMap<>();
+    private LinkMeasurement sourceLink;
+    private long planningRequests;
+    private long planningMillis;
+
+    /**
+     * @param overlapped Whether exports and imports run at the same time (pipeline or streaming)
+     */
+    MigrationEstimate(boolean overlapped) {
+        this.overlapped = overlapped;
+    }
+
+    void addTarget(String target) {
+        imports.put(target, new ArrayList<>());
+    }
+
+    /**
+     * Add a snapshot to import to a target
+     *
+     * @param size The size of its export in bytes, or -1 if unknown
+     */
+    void addImport(String target, MigrationStep step, long size) {
+        imports.get(target).add(step);
+        Long previous = exports.get(step.getKey());
+        if (previous == null || size > previous) {
+            exports.put(step.getKey(), size);
+            if (previous != null && previous >= 0) {
+                knownBytes -= previous;
+                knownSizes--;
+            }
+            if (size >= 0) {
+                knownBytes += size;
+                knownSizes++;
+            }
+        }
+    }
+
+    void setPlanning(long requests, long millis) {
+        this.planningRequests = requests;
+        this.planningMillis = millis;
+    }
+
+    void setSourceLink(LinkMeasurement sourceLink) {
+        this.sourceLink = sourceLink;
+    }
+
+    void setTargetLink(String target, LinkMeasurement link) {
+        targetLinks.put(target, link);
+    }
+
+    public int getExportCount() {
+        return exports.size();
+    }
+
+    public int getImportCount() {
+        int count = 0;
+        for (List<MigrationStep> steps : imports.values()) {
+            count += steps.size();
+        }
+        return count;
+    }
+
+    /**
+     * API requests of the whole migration: the planning requests are repeated by the real run
+     */
+    public long getTotalRequests() {
+        return planningRequests + getExportCount() + getImportCount();
+    }
+
+    /**
+     * Whether the bytes and the duration can be estimated: at least one size is known, or nothing is exported
+     */
+    public boolean isSizeKnown() {
+        return knownSizes > 0 || exports.isEmpty();
+    }
+
+    /**
+     * Bytes downloaded from the source, with unknown sizes counted at the average known size
+     *
+     * @return The bytes, or -1 if no size is known
+     */
+    public long getExportBytes() {
+        if (!isSizeKnown()) {
+            return -1;
+        }
+        long bytes = 0;
+        for (String key : exports.keySet()) {
+            bytes += sizeOf(key);
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes uploaded to all targets together
+     *
+     * @return The bytes, or -1 if no size is known
+     */
+    public long getImportBytes() {
+        if (!isSizeKnown()) {
+            return -1;
+        }
+        long bytes = 0;
+        for (List<MigrationStep> steps : imports.values()) {
+            bytes += bytesOf(steps);
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimated duration of the migration in milliseconds
+     * The targets are migrated concurrently, so the slowest target counts.
+     *
+     * @return The duration, or -1 if no size is known
+     */
+    public long getEstimatedMillis() {
+        if (!isSizeKnown()) {
+            return -1;
+        }
+        long exportMillis = sourceLink.estimateMillis(getExportCount(), getExportBytes());
+        long importMillis = slowestImportMillis();
+        return planningMillis + (overlapped ? Math.max(exportMillis, importMillis) : exportMillis + importMillis);
+    }
+
+    /**
+     * Log the plan of every target and the estimate
+     */
+    public void report() {
+        for (Map.Entry<String, List<MigrationStep>> target : imports.entrySet()) {
+            logger.info("Planned migration to {}: {} snapshots", target.getKey(), target.getValue().size());
+            for (MigrationStep step : target.getValue()) {
+                long size = exports.get(step.getKey());
+                logger.info("  {} {} / branch {} / snapshot {}: {}",
+                           step.getProject().isToolkit() ? "Toolkit" : "Process App",
+                           step.getProject().getDisplayName(), step.getBranchName(),
+                           step.getSnapshot().getDisplayName(), size >= 0 ? megabytes(size) : "size unknown");
+            }
+        }
+
+        int unknownSizes = 0;
+        for (long size : exports.values()) {
+            if (size < 0) {
+                unknownSizes++;
+            }
+        }
+        logger.info("Dry run summary:");
+        logger.info("  Snapshots: {} exports from the source, {} imports to {} targets",
+                   getExportCount(), getImportCount(), imports.size());
+        logger.info("  API requests: {} ({} for planning, {} exports, {} imports)",
+                   getTotalRequests(), planningRequests, getExportCount(), getImportCount());
+        if (isSizeKnown()) {
+            logger.info("  Bytes to transfer: {} from the source, {} to the targets{}",
+                       megabytes(getExportBytes()), megabytes(getImportBytes()),
+                       unknownSizes > 0 ? " (" + unknownSizes + " snapshots of unknown size counted at " +
+                                          megabytes(averageKnownSize()) + " each)" : "");
+        } else {
+            logger.info("  Bytes to transfer: unknown, the size of none of the {} snapshots is known " +
+                       "(pass the --export-cache-dir or --export-dir of an earlier run)", getExportCount());
+        }
+        logger.info("  Source: {}", sourceLink);
+        for (Map.Entry<String, LinkMeasurement> link : targetLinks.entrySet()) {
+            logger.info("  Target {}: {}", link.getKey(), link.getValue());
+        }
+        if (isSizeKnown()) {
+            logger.info("  Estimated duration: {} (planning {}, exports {}, imports {}; import processing on the targets not included)",
+                       duration(getEstimatedMillis()), duration(planningMillis),
+                       duration(sourceLink.estimateMillis(getExportCount(), getExportBytes())),
+                       duration(slowestImportMillis()));
+        } else {
+            logger.info("  Estimated duration: unknown without snapshot sizes (planning took {})", duration(planningMillis));
+        }
+    }
+
+    private long slowestImportMillis() {
+        long slowest = 0;
+        for (Map.Entry<String, List<MigrationStep>> target : imports.entrySet()) {
+            LinkMeasurement link = targetLinks.get(target.getKey());
+            slowest = Math.max(slowest, link.estimateMillis(target.getValue().size(), bytesOf(target.getValue())));
+        }
+        return slowest;
+    }
+
+    private long bytesOf(List<MigrationStep> steps) {
+        long bytes = 0;
+        for (MigrationStep step : steps) {
+            bytes += sizeOf(step.getKey());
+        }
+        return bytes;
+    }
+
+    private long sizeOf(String key) {
+        long size = exports.get(key);
+        return size >= 0 ? size : averageKnownSize();
+    }
+
+    private long averageKnownSize() {
+        return knownSizes > 0 ? knownBytes / knownSizes : 0;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String duration(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
+
+// Made with Bob
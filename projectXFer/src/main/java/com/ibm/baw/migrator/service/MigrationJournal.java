@@ -0,0 +1,298 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.model.MigrationStep;
+import com.ibm.baw.migrator.model.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of completed migration steps, kept in the export directory
+ * Every completed export (file path, size and SHA-256) and every completed import (with the target it
+ * went to) is appended as one tab-separated line and forced to disk before the step is reported as done. When a run is resumed,
+ * the journal is replayed: steps imported to a target are skipped for that target and exports that are still on disk with the
+ * recorded size and checksum are reused instead of being downloaded again.
+ * A record torn by a crash is ignored on replay, so the step it describes is simply redone.
+ */
+public class MigrationJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MigrationJournal.class);
+
+    public static final String JOURNAL_FILE_NAME = "migration-journal.tsv";
+
+    private static final String EXPORT = "EXPORT";
+    private static final String IMPORT = "IMPORT";
+
+    private final File journalFile;
+    // Null if the journal is only read
+    private final FileChannel channel;
+    // Step key -> completed export; target and step key -> target project of the completed import
+    private final Map<String, ExportRecord> exports = new HashMap<>();
+    private final Map<String, Project> imports = new HashMap<>();
+
+    /**
+     * Open the journal in the given directory
+     *
+     * @param directory The export directory
+     * @param resume If true, replay an existing journal; otherwise start a new one
+     */
+    public MigrationJournal(File directory, boolean resume) throws IOException {
+        this(directory, resume, false);
+    }
+
+    /**
+     * Open the journal in the given directory
+     *
+     * @param resume If true, replay an existing journal; otherwise start a new one
+     * @param readOnly If true, the journal file is not changed and nothing can be recorded, e.g. for a dry run
+     */
+    public MigrationJournal(File directory, boolean resume, boolean readOnly) throws IOException {
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+        if (readOnly) {
+            if (resume && journalFile.exists()) {
+                replay();
+            }
+            this.channel = null;
+        } else if (resume && journalFile.exists()) {
+            replay();
+            logger.info("Resuming from journal {}: {} exports and {} imports already completed",
+                       journalFile.getAbsolutePath(), exports.size(), imports.size());
+            this.channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            terminateTornRecord();
+        } else {
+            this.channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            logger.info("Writing migration journal to: {}", journalFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Whether the step has already been imported to the given target
+     *
+     * @param target The base URL of the target system
+     */
+    public synchronized boolean isImported(String target, MigrationStep step) {
+        return imports.containsKey(importKey(target, step.getKey()));
+    }
+
+    /**
+     * The target project recorded for a step imported to the given target, or null if the step has not been imported
+     * Only the ID, acronym and name of the project are known from the journal
+     */
+    public synchronized Project getImportedProject(String target, MigrationStep step) {
+        return imports.get(importKey(target, step.getKey()));
+    }
+
+    /**
+     * Find an earlier export of the step that is still on disk and matches the recorded size and checksum
+     *
+     * @return The exported file, or null if the step has to be exported again
+     */
+    public File findVerifiedExport(MigrationStep step) {
+        ExportRecord record;
+        synchronized (this) {
+            record = exports.get(step.getKey());
+        }
+        if (record == null) {
+            return null;
+        }
+        File file = new File(record.path);
+        if (!file.isFile() || file.length() != record.size) {
+            logger.info("Journaled export of {} is missing or incomplete, exporting again", step);
+            return null;
+        }
+        try {
+            if (!record.sha256.equals(Checksums.sha256(file))) {
+                logger.warn("Checksum of journaled export {} does not match, exporting again", file.getName());
+                return null;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to verify journaled export {}: {}", file.getName(), e.getMessage());
+            return null;
+        }
+        logger.info("Reusing verified export of {}: {}", step, file.getName());
+        return file;
+    }
+
+    /**
+     * Size of the journaled export of the step, without checking that the file is still there
+     *
+     * @return The size in bytes, or -1 if no export of the step is journaled
+     */
+    public synchronized long getExportSize(MigrationStep step) {
+        ExportRecord record = exports.get(step.getKey());
+        return record != null ? record.size : -1;
+    }
+
+    /**
+     * The checksum recorded for an export of the step, or null if the given file is not the journaled export
+     */
+    public synchronized String getExportChecksum(MigrationStep step, File exportedFile) {
+        ExportRecord record = exports.get(step.getKey());
+        return record != null && record.path.equals(exportedFile.getAbsolutePath()) ? record.sha256 : null;
+    }
+
+    /**
+     * Record a completed export
+     *
+     * @param sha256 The hex encoded SHA-256 checksum of the file, computed while it was written
+     */
+    public synchronized void recordExport(MigrationStep step, File exportedFile, String sha256) throws IOException {
+        ExportRecord record = new ExportRecord(exportedFile.getAbsolutePath(), exportedFile.length(), sha256);
+        append(EXPORT, step.getKey(), record.path, Long.toString(record.size), record.sha256);
+        exports.put(step.getKey(), record);
+    }
+
+    /**
+     * Record a completed import to the given target
+     */
+    public synchronized void recordImport(String target, MigrationStep step, Project importedProject) throws IOException {
+        append(IMPORT, target, step.getKey(), importedProject.getId(), importedProject.getAcronym(), importedProject.getName());
+        imports.put(importKey(target, step.getKey()), importedProject);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Append one record and force it to disk
+     */
+    private void append(String... fields) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("Migration journal is read-only: " + journalFile.getAbsolutePath());
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append(escape(fields[i]));
+        }
+        line.append('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private void replay() throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (EXPORT.equals(fields[0]) && fields.length == 5) {
+                        exports.put(unescape(fields[1]),
+                                    new ExportRecord(unescape(fields[2]), Long.parseLong(fields[3]), fields[4]));
+                        continue;
+                    }
+                    if (IMPORT.equals(fields[0]) && fields.length == 6) {
+                        Project project = new Project();
+                        project.setId(unescape(fields[3]));
+                        project.setAcronym(emptyToNull(unescape(fields[4])));
+                        project.setFullName(emptyToNull(unescape(fields[5])));
+                        imports.put(importKey(unescape(fields[1]), unescape(fields[2])), project);
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // Fall through to the warning below
+                }
+                logger.warn("Ignoring incomplete journal record at line {}", lineNumber);
+            }
+        }
+    }
+
+    /**
+     * Make sure a record torn by a crash does not run into the next record
+     */
+    private void terminateTornRecord() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        try (FileChannel reader = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            reader.read(last, size - 1);
+            if (last.get(0) != '\n') {
+                channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+                channel.force(false);
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't': result.append('\t'); break;
+                    case 'n': result.append('\n'); break;
+                    case 'r': result.append('\r'); break;
+                    default: result.append(next); break;
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String importKey(String target, String stepKey) {
+        return target + "\t" + stepKey;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static class ExportRecord {
+        final String path;
+        final long size;
+        final String sha256;
+
+        ExportRecord(String path, long size, String sha256) {
+            this.path = path;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+}
+
+// Made with Bob
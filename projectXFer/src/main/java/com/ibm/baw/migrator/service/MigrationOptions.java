@@ -0,0 +1,217 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import java.io.File;
+
+/**
+ * Tuning options for a migration run
+ * Defaults reproduce the original behaviour (strictly sequential export then import)
+ */
+public class MigrationOptions {
+    private boolean ignoreBranches = false;
+    private boolean pipelineEnabled = false;
+    private boolean streaming = false;
+    private int exportThreads = 2;
+    private int importThreads = 1;
+    private int maxPendingExports = 4;
+    private int toolkitThreads = 1;
+    private DependencyStrategy dependencyStrategy = DependencyStrategy.WHAT_USED_BRANCH;
+    private boolean usedVersionsOnly = false;
+    private boolean incremental = false;
+    private boolean resume = false;
+    private boolean dryRun = false;
+    private int maxInFlightRequests = 1;
+    private File exportCacheDirectory;
+    private long exportCacheMaxBytes = 10L * 1024 * 1024 * 1024;
+    private int metadataCacheSize = MetadataRepository.DEFAULT_MAX_ENTRIES;
+    private File metadataCacheDirectory;
+
+    public boolean isIgnoreBranches() {
+        return ignoreBranches;
+    }
+
+    public void setIgnoreBranches(boolean ignoreBranches) {
+        this.ignoreBranches = ignoreBranches;
+    }
+
+    public boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    public void setPipelineEnabled(boolean pipelineEnabled) {
+        this.pipelineEnabled = pipelineEnabled;
+    }
+
+    /**
+     * Import each snapshot while it is exported, without storing the export on disk
+     * Takes precedence over the pipeline; a transfer that fails is repeated through the export directory.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getExportThreads() {
+        return exportThreads;
+    }
+
+    public void setExportThreads(int exportThreads) {
+        this.exportThreads = Math.max(1, exportThreads);
+    }
+
+    public int getImportThreads() {
+        return importThreads;
+    }
+
+    public void setImportThreads(int importThreads) {
+        this.importThreads = Math.max(1, importThreads);
+    }
+
+    /**
+     * Maximum number of snapshots that may be exported to disk but not yet imported
+     */
+    public int getMaxPendingExports() {
+        return maxPendingExports;
+    }
+
+    public void setMaxPendingExports(int maxPendingExports) {
+        this.maxPendingExports = Math.max(1, maxPendingExports);
+    }
+
+    /**
+     * Number of toolkits of the same dependency layer that are migrated in parallel
+     */
+    public int getToolkitThreads() {
+        return toolkitThreads;
+    }
+
+    public void setToolkitThreads(int toolkitThreads) {
+        this.toolkitThreads = Math.max(1, toolkitThreads);
+    }
+
+    public DependencyStrategy getDependencyStrategy() {
+        return dependencyStrategy;
+    }
+
+    public void setDependencyStrategy(DependencyStrategy dependencyStrategy) {
+        this.dependencyStrategy = dependencyStrategy;
+    }
+
+    /**
+     * Only migrate the toolkit snapshots that the Process App snapshots reference, directly or transitively
+     */
+    public boolean isUsedVersionsOnly() {
+        return usedVersionsOnly;
+    }
+
+    public void setUsedVersionsOnly(boolean usedVersionsOnly) {
+        this.usedVersionsOnly = usedVersionsOnly;
+    }
+
+    /**
+     * Only migrate snapshots that are not yet present on the target, even for projects that already exist there
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Replay the journal of an interrupted run in the export directory instead of starting a new one
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Only plan the migration and estimate its cost; nothing is exported, imported or written to the journal
+     */
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Maximum number of concurrent metadata requests to the source during dependency discovery
+     * A value of 1 keeps all requests on the blocking client.
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+    }
+
+    /**
+     * Directory of the content-addressed export cache, or null to export into the export directory without caching
+     */
+    public File getExportCacheDirectory() {
+        return exportCacheDirectory;
+    }
+
+    public void setExportCacheDirectory(File exportCacheDirectory) {
+        this.exportCacheDirectory = exportCacheDirectory;
+    }
+
+    /**
+     * Disk budget of the export cache in bytes
+     */
+    public long getExportCacheMaxBytes() {
+        return exportCacheMaxBytes;
+    }
+
+    public void setExportCacheMaxBytes(long exportCacheMaxBytes) {
+        this.exportCacheMaxBytes = Math.max(0, exportCacheMaxBytes);
+    }
+
+    /**
+     * Maximum number of branch, snapshot and dependency responses of each system kept in memory
+     */
+    public int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    public void setMetadataCacheSize(int metadataCacheSize) {
+        this.metadataCacheSize = Math.max(1, metadataCacheSize);
+    }
+
+    /**
+     * Directory in which the metadata of the source is kept between runs, or null to fetch it every run
+     */
+    public File getMetadataCacheDirectory() {
+        return metadataCacheDirectory;
+    }
+
+    public void setMetadataCacheDirectory(File metadataCacheDirectory) {
+        this.metadataCacheDirectory = metadataCacheDirectory;
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,109 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.model.Project;
+import com.ibm.baw.migrator.model.ToolkitDependency;
+
+import java.util.*;
+
+/**
+ * Global migration plan for a set of Process Apps
+ * Holds the union of the toolkit dependencies of all apps, in one topological order of layers, so that
+ * a toolkit shared by several apps is migrated exactly once. For every app the plan also knows which
+ * toolkits it needs (directly or transitively), so an app can be skipped when one of them fails.
+ * Toolkits are identified by their index in the plan; the plan keeps them in a compact
+ * {@link DependencyGraph} and rebuilds a {@link ToolkitDependency} only when one is migrated.
+ */
+public class MigrationPlan {
+    private final List<Project> processApps;
+    private final DependencyGraph graph;
+    // Process App ID -> toolkits it depends on, directly or transitively
+    private final Map<String, int[]> requiredToolkits = new HashMap<>();
+
+    public MigrationPlan(List<Project> processApps, List<List<ToolkitDependency>> layers,
+                         Map<String, Set<ToolkitDependency>> requiredToolkits) {
+        this.processApps = processApps;
+        this.graph = DependencyGraph.of(layers);
+        for (Map.Entry<String, Set<ToolkitDependency>> entry : requiredToolkits.entrySet()) {
+            this.requiredToolkits.put(entry.getKey(), entry.getValue().stream()
+                    .mapToInt(toolkit -> graph.indexOf(toolkit.getProject().getId()))
+                    .filter(toolkit -> toolkit >= 0)
+                    .toArray());
+        }
+    }
+
+    public List<Project> getProcessApps() {
+        return processApps;
+    }
+
+    /**
+     * Number of toolkit layers
+     */
+    public int getLayerCount() {
+        return graph.getLayerCount();
+    }
+
+    /**
+     * Toolkits of a layer, leaf-first; the toolkits of one layer only depend on earlier layers
+     */
+    public int[] getLayer(int layer) {
+        return graph.getLayer(layer);
+    }
+
+    /**
+     * Rebuild the project of a toolkit; every call returns a new object
+     */
+    public Project getToolkit(int toolkit) {
+        return graph.getToolkit(toolkit);
+    }
+
+    /**
+     * The toolkits a toolkit depends on directly
+     */
+    public int[] getDependencies(int toolkit) {
+        return graph.getDependencies(toolkit);
+    }
+
+    /**
+     * The branches of a toolkit that are migrated
+     */
+    public List<String> getBranchNames(int toolkit) {
+        return graph.getBranchNames(toolkit);
+    }
+
+    /**
+     * Rebuild a toolkit with the snapshots to migrate from each branch
+     * Every call returns new objects; the dependencies of the toolkit are only available through
+     * {@link #getDependencies(int)}.
+     */
+    public ToolkitDependency materializeToolkit(int toolkit) {
+        return graph.materialize(toolkit);
+    }
+
+    /**
+     * The toolkits a Process App depends on, directly or transitively
+     */
+    public int[] getRequiredToolkits(Project processApp) {
+        int[] toolkits = requiredToolkits.get(processApp.getId());
+        return toolkits != null ? toolkits.clone() : new int[0];
+    }
+
+    public int getToolkitCount() {
+        return graph.size();
+    }
+}
+
+// Made with Bob
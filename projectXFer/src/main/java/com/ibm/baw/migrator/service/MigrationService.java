@@ -15,36 +15,116 @@
 package com.ibm.baw.migrator.service;
 
 import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.client.BAWAsyncApiClient;
+import com.ibm.baw.migrator.client.RetryPolicy;
+import com.ibm.baw.migrator.client.UploadCancelledException;
 import com.ibm.baw.migrator.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Service for migrating Process Apps and their dependencies between systems
+ * With several targets, dependencies are resolved once, each target is migrated on its own thread with
+ * its own progress and failures, and every snapshot is exported from the source only once.
+ * A migration can also be split into an export to a {@link MigrationBundle}, which needs no target, and
+ * a later import of that bundle, which needs no source.
  */
 public class MigrationService {
     private static final Logger logger = LoggerFactory.getLogger(MigrationService.class);
+    // Round trips timed to measure the latency of a host during a dry run
+    private static final int LINK_LATENCY_SAMPLES = 5;
     
     private final BAWApiClient sourceClient;
-    private final BAWApiClient targetClient;
+    private final List<Target> targets;
+    private final BAWAsyncApiClient sourceAsyncClient;
+    private final MetadataRepository sourceMetadata;
     private final DependencyResolver dependencyResolver;
     private final File exportDirectory;
     private final boolean ignoreBranches;
+    private final MigrationOptions options;
+    private final boolean streaming;
+    private final SnapshotPipeline pipeline;
+    private final ExecutorService toolkitExecutor;
+    private final ExecutorService targetExecutor;
+    private final MigrationJournal journal;
+    private final ExportCache exportCache;
+    private final SharedExports sharedExports;
+    // Set while a bundle is imported; snapshots are then taken from the bundle instead of the source
+    private volatile MigrationBundle importBundle;
 
-    public MigrationService(BAWApiClient sourceClient, BAWApiClient targetClient, File exportDirectory, boolean ignoreBranches) {
+    public MigrationService(BAWApiClient sourceClient, BAWApiClient targetClient, File exportDirectory, boolean ignoreBranches) throws IOException {
+        this(sourceClient, targetClient, exportDirectory, defaultOptions(ignoreBranches));
+    }
+
+    public MigrationService(BAWApiClient sourceClient, BAWApiClient targetClient, File exportDirectory, MigrationOptions options) throws IOException {
+        this(sourceClient, Collections.singletonList(targetClient), exportDirectory, options);
+    }
+
+    /**
+     * Create a service that migrates from one source to several targets at once
+     *
+     * @param sourceClient The source system, or null if the service only imports a bundle
+     * @param targetClients The target systems; empty if the service only exports a bundle
+     */
+    public MigrationService(BAWApiClient sourceClient, List<BAWApiClient> targetClients, File exportDirectory, MigrationOptions options) throws IOException {
         this.sourceClient = sourceClient;
-        this.targetClient = targetClient;
-        this.dependencyResolver = new DependencyResolver(sourceClient, ignoreBranches);
+        this.targets = new ArrayList<>();
+        for (BAWApiClient targetClient : targetClients) {
+            targets.add(new Target(new MetadataRepository(targetClient, null, options.getMetadataCacheSize())));
+        }
+        this.sourceAsyncClient = sourceClient != null && options.getMaxInFlightRequests() > 1
+                ? new BAWAsyncApiClient(sourceClient, options.getMaxInFlightRequests())
+                : null;
+        // The resolver and the migration share the metadata of the source, so nothing is fetched twice
+        this.sourceMetadata = sourceClient != null
+                ? new MetadataRepository(sourceClient, sourceAsyncClient, options.getMetadataCacheSize(),
+                                         options.getMetadataCacheDirectory())
+                : null;
+        this.dependencyResolver = sourceMetadata != null
+                ? new DependencyResolver(sourceMetadata, options.isIgnoreBranches(), options.getDependencyStrategy(),
+                                         options.isUsedVersionsOnly(), options.getMaxInFlightRequests())
+                : null;
         this.exportDirectory = exportDirectory;
-        this.ignoreBranches = ignoreBranches;
+        this.ignoreBranches = options.isIgnoreBranches();
+        this.options = options;
+        if (options.isStreaming() && targets.size() > 1) {
+            logger.warn("--stream is ignored with several targets, each snapshot is exported once and imported to every target");
+        }
+        this.streaming = options.isStreaming() && targets.size() == 1;
+        if (streaming && options.isPipelineEnabled()) {
+            logger.warn("--pipeline is ignored when streaming, each snapshot is exported and imported in one transfer");
+        }
+        this.pipeline = options.isPipelineEnabled() && !streaming
+                ? new SnapshotPipeline(options.getExportThreads(), options.getImportThreads(), options.getMaxPendingExports())
+                : null;
+        this.toolkitExecutor = options.getToolkitThreads() > 1
+                ? Executors.newFixedThreadPool(options.getToolkitThreads(), SnapshotPipeline.namedThreadFactory("toolkit-worker"))
+                : null;
+        this.targetExecutor = targets.size() > 1
+                ? Executors.newFixedThreadPool(targets.size(), SnapshotPipeline.namedThreadFactory("target-worker"))
+                : null;
         
         if (!exportDirectory.exists()) {
             exportDirectory.mkdirs();
         }
+        this.journal = new MigrationJournal(exportDirectory, options.isResume(), options.isDryRun());
+        this.exportCache = options.getExportCacheDirectory() != null
+                ? new ExportCache(options.getExportCacheDirectory(), options.getExportCacheMaxBytes())
+                : null;
+        this.sharedExports = new SharedExports(targets.size());
+    }
+
+    private static MigrationOptions defaultOptions(boolean ignoreBranches) {
+        MigrationOptions options = new MigrationOptions();
+        options.setIgnoreBranches(ignoreBranches);
+        return options;
     }
 
     /**
@@ -53,27 +133,87 @@ public class MigrationService {
     public void migrateAllProcessApps() throws IOException {
         logger.info("Starting migration of all Process Apps");
         
-        // Get all projects from source
-        ProjectsResponse response = sourceClient.getProjects();
+        List<Project> processApps = findAllProcessApps();
+        
+        migrateProcessApps(processApps);
+        
+        logger.info("Migration completed");
+    }
+
+    /**
+     * Find all Process Apps on the source
+     */
+    public List<Project> findAllProcessApps() throws IOException {
+        // The catalog is loaded once and reused by the dependency resolution
         List<Project> processApps = new ArrayList<>();
         
-        for (Project project : response.getProjects()) {
+        for (Project project : sourceMetadata.getProjects()) {
             if ("processapp".equals(project.getType()) && !project.isToolkit()) {
                 processApps.add(project);
             }
         }
         
         logger.info("Found {} Process Apps to migrate", processApps.size());
+        return processApps;
+    }
+
+    /**
+     * The metadata of the source system, or null if the service only imports a bundle
+     */
+    public MetadataRepository getSourceMetadata() {
+        return sourceMetadata;
+    }
+
+    /**
+     * Migrate several Process Apps with one global plan
+     * The dependencies of all apps are resolved together and every shared toolkit is migrated exactly
+     * once, in a single topological order. An app is skipped if one of the toolkits it needs fails;
+     * the other apps are still migrated.
+     */
+    public void migrateProcessApps(List<Project> processApps) throws IOException {
+        if (processApps.isEmpty()) {
+            return;
+        }
         
+        // Step 1: Resolve the union of all toolkit dependencies, grouped into independent layers
+        MigrationPlan plan = resolvePlan(processApps);
+        
+        forEachTarget(target -> migrateProcessApps(target, plan, processApps));
+    }
+
+    /**
+     * Resolve the migration plan of Process Apps and release the source metadata only the resolution needed
+     * The plan keeps what the toolkit steps need; the branches and snapshot lists of the Process Apps stay
+     * in memory because their own steps are listed from them.
+     */
+    private MigrationPlan resolvePlan(List<Project> processApps) throws IOException {
+        MigrationPlan plan = dependencyResolver.resolvePlan(processApps);
+        List<String> processAppIds = new ArrayList<>();
         for (Project processApp : processApps) {
+            processAppIds.add(processApp.getId());
+        }
+        sourceMetadata.release(processAppIds);
+        return plan;
+    }
+
+    private void migrateProcessApps(Target target, MigrationPlan plan, List<Project> processApps) throws IOException {
+        // Step 2: Export and import every toolkit once, layer by layer (leaf-first)
+        Map<Integer, IOException> failedToolkits = migrateToolkits(target, plan);
+        
+        // Step 3: Export and import the Process Apps themselves
+        for (Project processApp : processApps) {
+            int failedToolkit = findFailedToolkit(plan.getRequiredToolkits(processApp), failedToolkits);
+            if (failedToolkit >= 0) {
+                logger.error("Skipping Process App: {} because required toolkit: {} could not be migrated to {}",
+                           processApp.getDisplayName(), plan.getToolkit(failedToolkit).getDisplayName(), target.getName());
+                continue;
+            }
             try {
-                migrateProcessApp(processApp);
+                migrateProcessAppSnapshots(target, processApp);
             } catch (Exception e) {
-                logger.error("Failed to migrate Process App: {}", processApp.getDisplayName(), e);
+                logger.error("Failed to migrate Process App: {} to {}", processApp.getDisplayName(), target.getName(), e);
             }
         }
-        
-        logger.info("Migration completed");
     }
 
     /**
@@ -82,76 +222,489 @@ public class MigrationService {
     public void migrateProcessApp(Project processApp) throws IOException {
         logger.info("Migrating Process App: {}", processApp.getDisplayName());
         
-        // Step 1: Resolve all toolkit dependencies
-        List<ToolkitDependency> dependencies = dependencyResolver.resolveDependencies(processApp);
+        // Step 1: Resolve all toolkit dependencies, grouped into independent layers
+        MigrationPlan plan = resolvePlan(Collections.singletonList(processApp));
+        
+        forEachTarget(target -> {
+            // Step 2: Export and import toolkits layer by layer (leaf-first)
+            Map<Integer, IOException> failedToolkits = migrateToolkits(target, plan);
+            if (!failedToolkits.isEmpty()) {
+                throw failedToolkits.values().iterator().next();
+            }
+            
+            // Step 3: Export and import the Process App itself
+            migrateProcessAppSnapshots(target, processApp);
+        });
+    }
+
+    /**
+     * Plan the migration of Process Apps without exporting or importing anything and estimate its cost
+     * Only the dependency resolution and the existence checks on the targets are run, then the latency
+     * and bandwidth of the source and every target are measured.
+     */
+    public MigrationEstimate estimateProcessApps(List<Project> processApps) throws IOException {
+        long start = System.currentTimeMillis();
+        long requestsBefore = countRequests();
+
+        MigrationPlan plan = resolvePlan(processApps);
+        MigrationEstimate estimate = new MigrationEstimate(pipeline != null || streaming);
+        for (Target target : targets) {
+            estimate.addTarget(target.getName());
+            for (int i = 0; i < plan.getLayerCount(); i++) {
+                for (int toolkit : plan.getLayer(i)) {
+                    for (MigrationStep step : selectToolkitSteps(target, plan.materializeToolkit(toolkit))) {
+                        estimate.addImport(target.getName(), step, knownExportSize(step));
+                    }
+                }
+            }
+            for (Project processApp : processApps) {
+                for (MigrationStep step : selectProcessAppSteps(target, processApp)) {
+                    estimate.addImport(target.getName(), step, knownExportSize(step));
+                }
+            }
+        }
+        estimate.setPlanning(countRequests() - requestsBefore, System.currentTimeMillis() - start);
+
+        estimate.setSourceLink(sourceClient.measureLink(LINK_LATENCY_SAMPLES));
+        for (Target target : targets) {
+            estimate.setTargetLink(target.getName(), target.client.measureLink(LINK_LATENCY_SAMPLES));
+        }
+        return estimate;
+    }
+
+    private long countRequests() {
+        long count = sourceClient.getRequestCount();
+        for (Target target : targets) {
+            count += target.client.getRequestCount();
+        }
+        return count;
+    }
+
+    /**
+     * Size of the export of a step from an earlier run, or -1 if it was never exported
+     */
+    private long knownExportSize(MigrationStep step) {
+        long size = exportCache != null ? exportCache.getSize(step) : -1;
+        return size >= 0 ? size : journal.getExportSize(step);
+    }
+
+    /**
+     * Export Process Apps with all their dependencies to a migration bundle in the export directory
+     * Nothing is sent to a target. Snapshots are exported with the configured number of export threads;
+     * a snapshot that fails is recorded as missing in the bundle and the other snapshots are still exported.
+     */
+    public void exportBundle(List<Project> processApps) throws IOException {
+        if (processApps.isEmpty()) {
+            return;
+        }
+        
+        MigrationPlan plan = resolvePlan(processApps);
+        MigrationBundle bundle = MigrationBundle.create(exportDirectory, sourceClient.getBaseUrl());
+        bundle.addToolkits(plan);
+        
+        // Project ID -> steps in import order
+        Map<String, List<MigrationStep>> stepsByProject = new LinkedHashMap<>();
+        for (int i = 0; i < plan.getLayerCount(); i++) {
+            for (int toolkit : plan.getLayer(i)) {
+                stepsByProject.put(plan.getToolkit(toolkit).getId(), planToolkitSteps(plan.materializeToolkit(toolkit)));
+            }
+        }
+        for (Project processApp : processApps) {
+            bundle.addProcessApp(processApp, plan);
+            stepsByProject.put(processApp.getId(), planProcessAppSteps(processApp));
+        }
+        
+        List<MigrationStep> steps = new ArrayList<>();
+        for (List<MigrationStep> projectSteps : stepsByProject.values()) {
+            steps.addAll(projectSteps);
+        }
+        logger.info("Exporting {} snapshots of {} toolkits and {} Process Apps to a migration bundle in: {}",
+                   steps.size(), plan.getToolkitCount(), processApps.size(), exportDirectory.getAbsolutePath());
+        
+        ExecutorService exportExecutor = Executors.newFixedThreadPool(options.getExportThreads(),
+                SnapshotPipeline.namedThreadFactory("bundle-export-worker"));
+        int failedSnapshots = 0;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (MigrationStep step : steps) {
+                futures.add(exportExecutor.submit(() -> {
+                    exportToBundle(bundle, step);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                MigrationStep step = steps.get(i);
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failedSnapshots++;
+                    logger.error("Failed to export {} to the migration bundle", step, e.getCause());
+                    bundle.addFailedExport(step);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while exporting the migration bundle");
+                }
+            }
+        } finally {
+            exportExecutor.shutdownNow();
+        }
+        
+        bundle.save(stepsByProject);
+        if (failedSnapshots > 0) {
+            logger.error("Exported migration bundle with {} of {} snapshots failed", failedSnapshots, steps.size());
+        } else {
+            logger.info("Successfully exported migration bundle with {} snapshots", steps.size());
+        }
+    }
+
+    private void exportToBundle(MigrationBundle bundle, MigrationStep step) throws IOException {
+        File exportedFile = exportStep(step);
+        try {
+            String sha256 = journal.getExportChecksum(step, exportedFile);
+            if (sha256 == null) {
+                // Not downloaded in this run: cached exports are named after their checksum
+                sha256 = exportCache != null
+                        ? exportedFile.getName().substring(0, exportedFile.getName().lastIndexOf('.'))
+                        : Checksums.sha256(exportedFile);
+            }
+            bundle.addExport(step, exportedFile, sha256, exportFileName(step));
+        } finally {
+            if (exportCache != null) {
+                exportCache.release(exportedFile);
+            }
+        }
+    }
+
+    /**
+     * Import a migration bundle from the export directory to every target
+     * The bundle is imported with the same ordering and pipelining as a direct migration; the source
+     * is not contacted.
+     */
+    public void importBundle() throws IOException {
+        MigrationBundle bundle = MigrationBundle.read(exportDirectory);
+        MigrationPlan plan = bundle.getPlan();
+        importBundle = bundle;
+        try {
+            forEachTarget(target -> migrateProcessApps(target, plan, plan.getProcessApps()));
+        } finally {
+            importBundle = null;
+        }
+    }
+
+    /**
+     * Run a migration against every target
+     * A single target is migrated on the calling thread. Several targets are migrated concurrently, each
+     * on its own thread, and a target that fails does not stop the others.
+     *
+     * @throws IOException If the migration failed on any target, after all targets have finished
+     */
+    private void forEachTarget(TargetTask task) throws IOException {
+        if (targets.isEmpty()) {
+            throw new IllegalStateException("No target system to migrate to");
+        }
+        if (targetExecutor == null) {
+            task.run(targets.get(0));
+            return;
+        }
         
-        // Step 2: Export and import toolkits in order (leaf-first)
-        Map<String, Project> importedProjects = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (Target target : targets) {
+            futures.add(targetExecutor.submit(() -> {
+                logger.info("Starting migration to target: {}", target.getName());
+                task.run(target);
+                return null;
+            }));
+        }
         
-        for (ToolkitDependency dependency : dependencies) {
+        IOException failure = null;
+        int failedTargets = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            String targetName = targets.get(i).getName();
             try {
-                Project importedToolkit = migrateToolkit(dependency);
-                importedProjects.put(dependency.getProject().getId(), importedToolkit);
-            } catch (Exception e) {
-                logger.error("Failed to migrate toolkit: {}",
-                           dependency.getProject().getDisplayName(), e);
-                throw new IOException("Failed to migrate required toolkit: " +
-                                    dependency.getProject().getDisplayName(), e);
+                futures.get(i).get();
+                logger.info("Finished migration to target: {}", targetName);
+            } catch (ExecutionException e) {
+                failedTargets++;
+                logger.error("Migration to target: {} failed", targetName, e.getCause());
+                if (failure == null) {
+                    failure = new IOException("Migration to target " + targetName + " failed", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while migrating to the targets");
             }
         }
+        if (failure != null) {
+            logger.error("Migration failed on {} of {} targets", failedTargets, targets.size());
+            throw failure;
+        }
+    }
+
+    /**
+     * Export and import the snapshots of a Process App whose toolkits have been migrated
+     */
+    private void migrateProcessAppSnapshots(Target target, Project processApp) throws IOException {
+        logger.info("Migrating Process App snapshots: {} to {}", processApp.getDisplayName(), target.getName());
         
-        // Step 3: Export and import the Process App itself
-        logger.info("Migrating Process App snapshots: {}", processApp.getDisplayName());
+        List<MigrationStep> steps = selectProcessAppSteps(target, processApp);
+        
+        int failedSnapshots = 0;
+        if (pipeline != null) {
+            // Failed Process App snapshots are logged and do not stop the remaining snapshots
+            for (SnapshotPipeline.StepResult result : pipeline.run(steps, this::exportStep,
+                    (step, exportedFile) -> importStep(target, step, exportedFile), this::releaseExport, false)) {
+                if (!result.isSuccessful() && !result.isSkipped()) {
+                    failedSnapshots++;
+                    MigrationStep step = result.getStep();
+                    logger.error("Failed to migrate snapshot: {} of Process App: {} on branch: {} to {}",
+                               step.getSnapshot().getDisplayName(), processApp.getDisplayName(),
+                               step.getBranchName(), target.getName(), result.getError());
+                }
+            }
+        } else {
+            for (MigrationStep step : steps) {
+                try {
+                    exportAndImportSnapshot(target, step);
+                } catch (Exception e) {
+                    failedSnapshots++;
+                    logger.error("Failed to migrate snapshot: {} of Process App: {} on branch: {} to {}",
+                               step.getSnapshot().getDisplayName(), processApp.getDisplayName(), step.getBranchName(),
+                               target.getName(), e);
+                }
+            }
+        }
+        
+        if (failedSnapshots > 0) {
+            logger.error("Migrated Process App: {} to {} with {} of {} snapshots failed", processApp.getDisplayName(),
+                        target.getName(), failedSnapshots, steps.size());
+        } else {
+            logger.info("Successfully migrated Process App: {} to {}", processApp.getDisplayName(), target.getName());
+        }
+    }
+
+    /**
+     * Select the snapshots of a Process App that still have to be migrated to the target
+     */
+    private List<MigrationStep> selectProcessAppSteps(Target target, Project processApp) throws IOException {
+        MigrationBundle bundle = importBundle;
+        List<MigrationStep> plannedSteps = bundle != null ? bundle.getSteps(processApp) : planProcessAppSteps(processApp);
+        List<MigrationStep> steps = removeStepsCompletedInJournal(target, plannedSteps);
         
+        if (options.isIncremental()) {
+            Project existingApp = findProjectOnTarget(target, processApp);
+            if (existingApp != null) {
+                steps = removeStepsPresentOnTarget(target, existingApp, steps);
+            }
+        }
+        return finishUnselected(plannedSteps, steps);
+    }
+
+    /**
+     * List the snapshots of a Process App on the source, in import order
+     */
+    private List<MigrationStep> planProcessAppSteps(Project processApp) throws IOException {
         // Get branches to process
         List<Branch> branchesToProcess = getBranchesToProcess(processApp);
+        List<MigrationStep> steps = new ArrayList<>();
         
         for (Branch branch : branchesToProcess) {
             logger.info("Processing branch: {} for Process App: {}", branch.getName(), processApp.getDisplayName());
             
-            SnapshotsResponse snapshotsResponse = sourceClient.getSnapshots(
-                processApp.getId(),
-                branch.getName()
-            );
+            List<Snapshot> snapshots = sourceMetadata.getSnapshots(processApp.getId(), branch.getName());
             
-            if (snapshotsResponse.getSnapshots() == null || snapshotsResponse.getSnapshots().isEmpty()) {
+            if (snapshots.isEmpty()) {
                 logger.warn("No snapshots found for Process App: {} on branch: {}",
                            processApp.getDisplayName(), branch.getName());
                 continue;
             }
             
             // Sort snapshots by creation date (oldest first)
-            List<Snapshot> sortedSnapshots = new ArrayList<>(snapshotsResponse.getSnapshots());
+            List<Snapshot> sortedSnapshots = new ArrayList<>(snapshots);
             sortedSnapshots.sort(Comparator.comparing(Snapshot::getCreationDate,
                                                       Comparator.nullsLast(String::compareTo)));
             
             for (Snapshot snapshot : sortedSnapshots) {
+                steps.add(new MigrationStep(processApp, snapshot, branch.getName()));
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Migrate all toolkits of a plan, layer by layer
+     * A toolkit that depends on a failed toolkit is not attempted and counts as failed itself.
+     *
+     * @return The failed toolkits with their errors, in plan order
+     */
+    private Map<Integer, IOException> migrateToolkits(Target target, MigrationPlan plan) throws IOException {
+        Map<Integer, IOException> failedToolkits = new LinkedHashMap<>();
+        
+        for (int i = 0; i < plan.getLayerCount(); i++) {
+            List<Integer> layer = new ArrayList<>();
+            for (int toolkit : plan.getLayer(i)) {
+                int failedDependency = findFailedToolkit(plan.getDependencies(toolkit), failedToolkits);
+                if (failedDependency >= 0) {
+                    logger.error("Skipping toolkit: {} because it depends on toolkit: {} that could not be migrated to {}",
+                               plan.getToolkit(toolkit).getDisplayName(), plan.getToolkit(failedDependency).getDisplayName(),
+                               target.getName());
+                    failedToolkits.put(toolkit, new IOException("Failed to migrate required toolkit: " +
+                                       plan.getToolkit(toolkit).getDisplayName(), failedToolkits.get(failedDependency)));
+                } else {
+                    layer.add(toolkit);
+                }
+            }
+            logger.info("Migrating dependency layer {} of {} ({} toolkits) to {}", i + 1, plan.getLayerCount(),
+                       layer.size(), target.getName());
+            migrateToolkitLayer(target, plan, layer, failedToolkits);
+        }
+        return failedToolkits;
+    }
+
+    /**
+     * The first of the given toolkits that failed, or -1 if none did
+     */
+    private static int findFailedToolkit(int[] toolkits, Map<Integer, IOException> failedToolkits) {
+        for (int toolkit : toolkits) {
+            if (failedToolkits.containsKey(toolkit)) {
+                return toolkit;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Migrate the toolkits of one dependency layer
+     * Toolkits in the same layer do not depend on each other, so they are migrated in parallel when
+     * more than one toolkit worker is configured. Failures are added to the given map.
+     */
+    private void migrateToolkitLayer(Target target, MigrationPlan plan, List<Integer> layer,
+                                     Map<Integer, IOException> failedToolkits) throws IOException {
+        if (toolkitExecutor == null || layer.size() <= 1) {
+            for (int toolkit : layer) {
                 try {
-                    exportAndImportSnapshot(processApp, snapshot, branch.getName());
-                } catch (Exception e) {
-                    logger.error("Failed to migrate snapshot: {} of Process App: {} on branch: {}",
-                               snapshot.getDisplayName(), processApp.getDisplayName(), branch.getName(), e);
+                    migrateRequiredToolkit(target, plan, toolkit);
+                } catch (IOException e) {
+                    failedToolkits.put(toolkit, e);
                 }
             }
+            return;
         }
         
-        logger.info("Successfully migrated Process App: {}", processApp.getDisplayName());
+        List<Future<?>> futures = new ArrayList<>();
+        for (int toolkit : layer) {
+            futures.add(toolkitExecutor.submit(() -> {
+                migrateRequiredToolkit(target, plan, toolkit);
+                return null;
+            }));
+        }
+        
+        // Wait for the whole layer so that the next layer only starts on a complete one
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                failedToolkits.put(layer.get(i), asIOException(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while migrating toolkits");
+            }
+        }
+    }
+
+    /**
+     * Migrate a toolkit that the Process App cannot be imported without
+     * Its snapshots are only rebuilt from the plan now, so the plan of a large estate stays compact.
+     */
+    private void migrateRequiredToolkit(Target target, MigrationPlan plan, int toolkit) throws IOException {
+        try {
+            migrateToolkit(target, plan.materializeToolkit(toolkit));
+        } catch (Exception e) {
+            logger.error("Failed to migrate toolkit: {} to {}",
+                       plan.getToolkit(toolkit).getDisplayName(), target.getName(), e);
+            throw new IOException("Failed to migrate required toolkit: " +
+                                plan.getToolkit(toolkit).getDisplayName(), e);
+        }
     }
 
     /**
      * Migrate a toolkit with all its versions
      */
-    private Project migrateToolkit(ToolkitDependency dependency) throws IOException {
+    private void migrateToolkit(Target target, ToolkitDependency dependency) throws IOException {
+        Project toolkit = dependency.getProject();
+        logger.info("Migrating toolkit: {} with snapshots from {} branches to {}",
+                   toolkit.getDisplayName(), dependency.getBranchSnapshots().size(), target.getName());
+        
+        List<MigrationStep> steps = selectToolkitSteps(target, dependency);
+        if (steps.isEmpty()) {
+            return;
+        }
+        
+        if (pipeline != null) {
+            for (SnapshotPipeline.StepResult result : pipeline.run(steps, this::exportStep,
+                    (step, exportedFile) -> importStep(target, step, exportedFile), this::releaseExport, true)) {
+                if (!result.isSuccessful() && !result.isSkipped()) {
+                    MigrationStep step = result.getStep();
+                    logger.error("Failed to migrate snapshot: {} of toolkit: {} on branch: {} to {}",
+                               step.getSnapshot().getDisplayName(), toolkit.getDisplayName(), step.getBranchName(),
+                               target.getName(), result.getError());
+                    throw asIOException(result.getError());
+                }
+            }
+        } else {
+            for (MigrationStep step : steps) {
+                try {
+                    exportAndImportSnapshot(target, step);
+                } catch (Exception e) {
+                    logger.error("Failed to migrate snapshot: {} of toolkit: {} on branch: {} to {}",
+                               step.getSnapshot().getDisplayName(), toolkit.getDisplayName(), step.getBranchName(),
+                               target.getName(), e);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Select the snapshots of a toolkit that still have to be migrated to the target
+     * Nothing is selected for a toolkit that already exists on the target, unless the sync is incremental;
+     * snapshots recorded in the journal or, for an existing toolkit, present on the target are left out.
+     */
+    private List<MigrationStep> selectToolkitSteps(Target target, ToolkitDependency dependency) throws IOException {
         Project toolkit = dependency.getProject();
-        logger.info("Migrating toolkit: {} with snapshots from {} branches",
-                   toolkit.getDisplayName(), dependency.getBranchSnapshots().size());
         
         // Check if toolkit already exists on target
-        Project existingToolkit = findProjectOnTarget(toolkit.getName());
+        Project existingToolkit = findProjectOnTarget(target, toolkit);
+        if (existingToolkit != null && !options.isIncremental()) {
+            logger.info("Toolkit already exists on target {}: {}", target.getName(), toolkit.getDisplayName());
+            return finishUnselected(targets.size() > 1 ? planToolkitSteps(dependency) : Collections.emptyList(),
+                                    Collections.emptyList());
+        }
+        
+        // Steps imported by an interrupted run are not repeated
+        List<MigrationStep> plannedSteps = planToolkitSteps(dependency);
+        List<MigrationStep> steps = removeStepsCompletedInJournal(target, plannedSteps);
+        if (steps.isEmpty() && !plannedSteps.isEmpty()) {
+            logger.info("All snapshots of toolkit were already imported to {}: {}", target.getName(), toolkit.getDisplayName());
+            return finishUnselected(plannedSteps, steps);
+        }
+        
         if (existingToolkit != null) {
-            logger.info("Toolkit already exists on target: {}", toolkit.getDisplayName());
-            return existingToolkit;
+            steps = removeStepsPresentOnTarget(target, existingToolkit, steps);
+            if (steps.isEmpty()) {
+                logger.info("Toolkit already exists on target {} with all snapshots: {}", target.getName(),
+                           toolkit.getDisplayName());
+            }
         }
+        return finishUnselected(plannedSteps, steps);
+    }
+
+    /**
+     * List the snapshots of a toolkit in import order: default branch first, then oldest first
+     */
+    private List<MigrationStep> planToolkitSteps(ToolkitDependency dependency) {
+        Project toolkit = dependency.getProject();
         
         // Sort branch names to ensure default branch is processed first
         List<String> branchNames = new ArrayList<>(dependency.getBranchSnapshots().keySet());
@@ -167,7 +720,7 @@ public class MigrationService {
         });
         
         // Export and import all snapshots from all branches in order (default branch first, then oldest first)
-        Project importedToolkit = null;
+        List<MigrationStep> steps = new ArrayList<>();
         for (String branchName : branchNames) {
             List<Snapshot> snapshots = dependency.getBranchSnapshots().get(branchName);
             
@@ -175,60 +728,333 @@ public class MigrationService {
                        snapshots.size(), branchName, toolkit.getDisplayName(), defaultBranchName);
             
             for (Snapshot snapshot : snapshots) {
-                try {
-                    importedToolkit = exportAndImportSnapshot(toolkit, snapshot, branchName);
-                } catch (Exception e) {
-                    logger.error("Failed to migrate snapshot: {} of toolkit: {} on branch: {}",
-                               snapshot.getDisplayName(), toolkit.getDisplayName(), branchName, e);
-                    throw e;
-                }
+                steps.add(new MigrationStep(toolkit, snapshot, branchName));
             }
         }
-        
-        return importedToolkit;
+        return steps;
+    }
+
+    /**
+     * Drop the steps that the journal records as imported to the target
+     */
+    private List<MigrationStep> removeStepsCompletedInJournal(Target target, List<MigrationStep> steps) {
+        List<MigrationStep> remaining = new ArrayList<>();
+        for (MigrationStep step : steps) {
+            if (journal.isImported(target.getName(), step)) {
+                logger.info("Skipping {}, already imported to {} according to the journal", step, target.getName());
+            } else {
+                remaining.add(step);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Incremental sync: drop the steps whose snapshot already exists in the given target project
+     */
+    private List<MigrationStep> removeStepsPresentOnTarget(Target target, Project targetProject,
+                                                           List<MigrationStep> steps) throws IOException {
+        Set<String> presentSnapshots = target.index.getSnapshotNames(targetProject);
+        List<MigrationStep> missing = new ArrayList<>();
+        for (MigrationStep step : steps) {
+            if (!presentSnapshots.contains(step.getSnapshot().getName())) {
+                missing.add(step);
+            }
+        }
+        logger.info("Incremental sync of {}: {} of {} snapshots are missing on target {}",
+                   targetProject.getDisplayName(), missing.size(), steps.size(), target.getName());
+        return missing;
     }
 
     /**
      * Export a snapshot from source and import to target
      */
-    private Project exportAndImportSnapshot(Project project, Snapshot snapshot, String branchName) throws IOException {
-        logger.info("Exporting snapshot: {} from project: {} on branch: {}",
-                   snapshot.getDisplayName(), project.getDisplayName(), branchName);
+    private Project exportAndImportSnapshot(Target target, MigrationStep step) throws IOException {
+        // Both ends of a transfer to the same host would compete for its concurrency limit
+        if (streaming && !sourceClient.sharesHostWith(target.client)) {
+            return streamStep(target, step);
+        }
+        return importStep(target, step, exportStep(step));
+    }
+
+    /**
+     * Import a snapshot while it is exported, so that the export never touches the disk
+     * A stream cannot be sent twice, so a transfer that fails with a transient error is repeated through
+     * the export directory, where the usual retries apply. An export that is already on disk is imported
+     * from there.
+     */
+    private Project streamStep(Target target, MigrationStep step) throws IOException {
+        File reusableExport = findReusableExport(step);
+        if (reusableExport != null) {
+            return importStep(target, step, reusableExport);
+        }
         
-        // Export snapshot
-        File exportedFile = sourceClient.exportSnapshot(
-            project.getId(),
-            branchName,
-            snapshot.getName(),
-            exportDirectory
-        );
+        Project project = step.getProject();
+        Snapshot snapshot = step.getSnapshot();
+        logger.info("Streaming snapshot: {} from project: {} on branch: {} to target system",
+                   snapshot.getDisplayName(), project.getDisplayName(), step.getBranchName());
         
-        logger.info("Importing snapshot: {} to target system", snapshot.getDisplayName());
+        String fileName = exportFileName(step);
+        Project importedProject;
+        try {
+            importedProject = sourceClient.exportSnapshotToConsumer(
+                project.getId(),
+                step.getBranchName(),
+                snapshot.getName(),
+                (content, contentLength) -> target.client.importProject(content, contentLength, fileName)
+            );
+        } catch (IOException e) {
+            boolean transientFailure = e instanceof UploadCancelledException
+                    ? sourceClient.getRetryPolicy().shouldRetry(((UploadCancelledException) e).getSourceError(), 1)
+                    : target.client.getRetryPolicy().shouldRetry(e, 1);
+            if (!transientFailure) {
+                throw e;
+            }
+            // The import may have reached the target after all
+            target.index.invalidate(project);
+            try {
+                importedProject = findSnapshotOnTarget(target, step);
+            } catch (IOException checkError) {
+                e.addSuppressed(checkError);
+                throw e;
+            }
+            if (importedProject == null) {
+                logger.warn("Streaming of {} failed with a transient error, continuing through the export directory: {}",
+                           step, e.toString());
+                return importStep(target, step, exportStep(step));
+            }
+            logger.info("Streaming of {} failed with a transient error, but the snapshot exists on target: {}",
+                       step, e.toString());
+        }
+        return recordImported(target, step, importedProject);
+    }
+
+    /**
+     * Find an export of the step that is already on disk, in the export cache or from an earlier run
+     *
+     * @return The export, or null if it has to be exported
+     */
+    private File findReusableExport(MigrationStep step) throws IOException {
+        if (exportCache != null) {
+            return exportCache.get(step);
+        }
+        return journal.findVerifiedExport(step);
+    }
+
+    private String exportFileName(MigrationStep step) {
+        return step.getProject().getId() + "_" + sanitizeFileName(step.getBranchName()) + "_" +
+               sanitizeFileName(step.getSnapshot().getName()) + ".twx";
+    }
+
+    /**
+     * Get the export of a snapshot, exporting it unless it is on disk or another target already exported it
+     */
+    private File exportStep(MigrationStep step) throws IOException {
+        return sharedExports.export(step, new SharedExports.Exporter() {
+            @Override
+            public File export(MigrationStep step) throws IOException {
+                MigrationBundle bundle = importBundle;
+                if (bundle != null) {
+                    return bundle.getFile(step);
+                }
+                File reusableExport = findReusableExport(step);
+                return reusableExport != null ? reusableExport : downloadStep(step);
+            }
+
+            @Override
+            public File reuse(MigrationStep step, File exportedFile) throws IOException {
+                // Every target pins its own use of a cached export
+                if (exportCache != null && importBundle == null) {
+                    return exportCache.get(step);
+                }
+                return exportedFile.isFile() ? exportedFile : null;
+            }
+        });
+    }
+
+    /**
+     * Export a snapshot from the source system to the export directory
+     * The file name includes the branch so that exports running concurrently never overwrite each other
+     */
+    private File downloadStep(MigrationStep step) throws IOException {
+        Project project = step.getProject();
+        Snapshot snapshot = step.getSnapshot();
+        logger.info("Exporting snapshot: {} from project: {} on branch: {}",
+                   snapshot.getDisplayName(), project.getDisplayName(), step.getBranchName());
         
-        // Import to target
-        Project importedProject = targetClient.importProject(exportedFile);
+        String fileName = exportFileName(step);
+        File outputFile = exportCache != null ? exportCache.newTempFile() : new File(exportDirectory, fileName);
         
-        logger.info("Successfully imported snapshot: {} as project: {}", 
-                   snapshot.getDisplayName(), importedProject.getDisplayName());
+        // The checksum is computed while the export streams in
+        MessageDigest digest = Checksums.newSha256();
+        File exportedFile;
+        try {
+            exportedFile = sourceClient.exportSnapshotToFile(
+                project.getId(),
+                step.getBranchName(),
+                snapshot.getName(),
+                outputFile,
+                digest
+            );
+        } catch (IOException e) {
+            if (exportCache != null) {
+                outputFile.delete();
+            }
+            throw e;
+        }
+        String sha256 = Checksums.toHex(digest.digest());
         
-        return importedProject;
+        if (exportCache != null) {
+            exportedFile = exportCache.put(step, exportedFile, sha256);
+        }
+        journal.recordExport(step, exportedFile, sha256);
+        return exportedFile;
     }
 
     /**
-     * Find a project on the target system by name
+     * Import a previously exported snapshot to the target system
+     * An import is not idempotent: after a transient failure the import may still have completed on the
+     * target, so the target is checked for the snapshot before the import is sent again.
      */
-    private Project findProjectOnTarget(String projectName) {
+    private Project importStep(Target target, MigrationStep step, File exportedFile) throws IOException {
+        Snapshot snapshot = step.getSnapshot();
+        logger.info("Importing snapshot: {} to target system: {}", snapshot.getDisplayName(), target.getName());
+        
+        // Import to target
+        RetryPolicy retryPolicy = target.client.getRetryPolicy();
+        Project importedProject = null;
         try {
-            ProjectsResponse response = targetClient.getProjects();
-            if (response.getProjects() != null) {
-                for (Project project : response.getProjects()) {
-                    if (projectName.equals(project.getName())) {
-                        return project;
+            for (int attempt = 1; importedProject == null; attempt++) {
+                try {
+                    importedProject = target.client.importProject(exportedFile);
+                } catch (IOException e) {
+                    if (!retryPolicy.shouldRetry(e, attempt)) {
+                        throw e;
+                    }
+                    // The import may have reached the target after all
+                    target.index.invalidate(step.getProject());
+                    try {
+                        importedProject = findSnapshotOnTarget(target, step);
+                    } catch (IOException checkError) {
+                        e.addSuppressed(checkError);
+                        throw e;
+                    }
+                    if (importedProject != null) {
+                        logger.info("Import of {} failed with a transient error, but the snapshot exists on target: {}",
+                                   step, e.toString());
+                    } else {
+                        logger.warn("Import of {} failed with a transient error (attempt {} of {}), retrying: {}",
+                                   step, attempt, retryPolicy.getMaxAttempts(), e.toString());
+                        retryPolicy.backOff(attempt);
                     }
                 }
             }
+        } finally {
+            releaseExport(exportedFile);
+        }
+        Project recordedProject = recordImported(target, step, importedProject);
+        finishExport(step, exportedFile);
+        return recordedProject;
+    }
+
+    /**
+     * Unpin an export that is no longer needed by this import
+     */
+    private void releaseExport(File exportedFile) {
+        if (exportCache != null) {
+            exportCache.release(exportedFile);
+        }
+    }
+
+    /**
+     * Delete an export once it is imported and journaled, unless something else still needs it
+     * Exports owned by the export cache or an import bundle are kept, and so is an export that another
+     * target has not imported yet. Together with the bound on pending exports this bounds the disk space
+     * of the export directory.
+     *
+     * @param exportedFile The imported export, or null if this target left the snapshot out of its plan
+     */
+    private void finishExport(MigrationStep step, File exportedFile) {
+        File finishedFile = sharedExports.finish(step, exportedFile);
+        if (finishedFile == null || exportCache != null || importBundle != null) {
+            return;
+        }
+        if (finishedFile.delete()) {
+            logger.debug("Deleted imported export: {}", finishedFile.getName());
+        } else if (finishedFile.exists()) {
+            logger.warn("Failed to delete imported export: {}", finishedFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Tell the shared exports which planned steps this target does not import
+     * With a single target nothing else waits for an export, and a dry run imports nothing, so nothing has
+     * to be reported then.
+     */
+    private List<MigrationStep> finishUnselected(List<MigrationStep> plannedSteps, List<MigrationStep> steps) {
+        if (targets.size() > 1 && !options.isDryRun()) {
+            Set<String> selected = new HashSet<>();
+            for (MigrationStep step : steps) {
+                selected.add(step.getKey());
+            }
+            for (MigrationStep step : plannedSteps) {
+                if (!selected.contains(step.getKey())) {
+                    finishExport(step, null);
+                }
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Record a completed import in the target index and the journal
+     */
+    private Project recordImported(Target target, MigrationStep step, Project importedProject) throws IOException {
+        Snapshot snapshot = step.getSnapshot();
+        target.index.recordImport(importedProject, snapshot.getName());
+        journal.recordImport(target.getName(), step, importedProject);
+        
+        logger.info("Successfully imported snapshot: {} as project: {} to {}", 
+                   snapshot.getDisplayName(), importedProject.getDisplayName(), target.getName());
+        
+        return importedProject;
+    }
+
+    /**
+     * Find the target project that already contains the snapshot of a step
+     *
+     * @return The target project, or null if the snapshot is not on the target
+     */
+    private Project findSnapshotOnTarget(Target target, MigrationStep step) throws IOException {
+        Project sourceProject = step.getProject();
+        Project targetProject = target.index.findByName(sourceProject.getName());
+        if (targetProject == null) {
+            targetProject = target.index.findByAcronym(sourceProject.getAcronym());
+        }
+        if (targetProject != null && target.index.getSnapshotNames(targetProject).contains(step.getSnapshot().getName())) {
+            return targetProject;
+        }
+        return null;
+    }
+
+    private static String sanitizeFileName(String name) {
+        return name == null ? "" : name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static IOException asIOException(Throwable error) {
+        return error instanceof IOException ? (IOException) error : new IOException(error.getMessage(), error);
+    }
+
+    /**
+     * Find a project on the target system by name, falling back to its acronym
+     * Uses the target index, so no network call is made once the index has been built
+     */
+    private Project findProjectOnTarget(Target target, Project sourceProject) {
+        try {
+            Project project = target.index.findByName(sourceProject.getName());
+            return project != null ? project : target.index.findByAcronym(sourceProject.getAcronym());
         } catch (IOException e) {
-            logger.warn("Failed to check for existing project on target: {}", projectName, e);
+            logger.warn("Failed to check for existing project on target {}: {}", target.getName(), sourceProject.getName(), e);
         }
         return null;
     }
@@ -247,9 +1073,9 @@ public class MigrationService {
         } else {
             // Process all branches
             logger.info("Fetching all branches for project: {}", project.getDisplayName());
-            BranchesResponse branchesResponse = sourceClient.getBranches(project.getId());
+            List<Branch> projectBranches = sourceMetadata.getBranches(project.getId());
             
-            if (branchesResponse.getBranches() == null || branchesResponse.getBranches().isEmpty()) {
+            if (projectBranches.isEmpty()) {
                 logger.warn("No branches found for project: {}, using default branch", project.getDisplayName());
                 Branch defaultBranch = new Branch();
                 defaultBranch.setName(project.getDefaultBranchName());
@@ -258,7 +1084,7 @@ public class MigrationService {
             }
             
             // Sort branches to ensure default branch is processed first
-            List<Branch> branches = new ArrayList<>(branchesResponse.getBranches());
+            List<Branch> branches = new ArrayList<>(projectBranches);
             String defaultBranchName = project.getDefaultBranchName();
             branches.sort((b1, b2) -> {
                 // Default branch comes first
@@ -276,6 +1102,47 @@ public class MigrationService {
         }
     }
 
+    /**
+     * Release worker threads held by this service
+     */
+    public void shutdown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (toolkitExecutor != null) {
+            toolkitExecutor.shutdownNow();
+        }
+        if (targetExecutor != null) {
+            targetExecutor.shutdownNow();
+        }
+        if (sourceAsyncClient != null) {
+            sourceAsyncClient.close();
+        }
+        if (sourceMetadata != null) {
+            sourceMetadata.logStatistics();
+            try {
+                sourceMetadata.close();
+            } catch (IOException e) {
+                logger.warn("Failed to save metadata cache: {}", e.getMessage());
+            }
+        }
+        for (Target target : targets) {
+            target.metadata.logStatistics();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close migration journal: {}", e.getMessage());
+        }
+        if (exportCache != null) {
+            try {
+                exportCache.close();
+            } catch (IOException e) {
+                logger.warn("Failed to save export cache index: {}", e.getMessage());
+            }
+        }
+    }
+
     /**
      * Get migration statistics
      */
@@ -284,6 +1151,33 @@ public class MigrationService {
         return new MigrationStats();
     }
 
+    /**
+     * A target system with the index of the projects on it
+     */
+    private static class Target {
+        private final BAWApiClient client;
+        private final MetadataRepository metadata;
+        private final TargetProjectIndex index;
+
+        Target(MetadataRepository metadata) {
+            this.client = metadata.getClient();
+            this.metadata = metadata;
+            this.index = new TargetProjectIndex(metadata);
+        }
+
+        String getName() {
+            return client.getBaseUrl();
+        }
+    }
+
+    /**
+     * Part of a migration that is run once per target
+     */
+    @FunctionalInterface
+    private interface TargetTask {
+        void run(Target target) throws IOException;
+    }
+
     /**
      * Simple class to hold migration statistics
      */
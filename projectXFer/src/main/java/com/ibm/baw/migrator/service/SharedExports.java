@@ -0,0 +1,134 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.model.MigrationStep;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports each snapshot once for all targets of a run
+ * The first target that needs a snapshot exports it; targets that need it while the export runs wait
+ * for it, and later targets reuse the finished file. A failed export is reported to every target that
+ * waited for it and forgotten, so that the next target to need the snapshot tries again. Every target
+ * reports when it is done with a snapshot, having imported it or left it out of its plan; once all
+ * targets are, the export is handed back so that it can be deleted.
+ */
+class SharedExports {
+    private static final Logger logger = LoggerFactory.getLogger(SharedExports.class);
+
+    /**
+     * Exports a snapshot for the first target, and hands the finished export to the other targets
+     */
+    interface Exporter {
+        File export(MigrationStep step) throws IOException;
+
+        /**
+         * Take over an export made for another target
+         *
+         * @return The file to import, or null if the export is no longer usable and has to be made again
+         */
+        File reuse(MigrationStep step, File exportedFile) throws IOException;
+    }
+
+    private final int targetCount;
+    // Step key -> export of the snapshot, running or completed
+    private final ConcurrentMap<String, CompletableFuture<File>> exports = new ConcurrentHashMap<>();
+    // Step key -> number of targets done with the snapshot
+    private final ConcurrentMap<String, AtomicInteger> finishedTargets = new ConcurrentHashMap<>();
+
+    /**
+     * @param targetCount Number of targets that import the exports
+     */
+    SharedExports(int targetCount) {
+        this.targetCount = targetCount;
+    }
+
+    /**
+     * Get the export of a step, exporting it unless another target already did
+     */
+    File export(MigrationStep step, Exporter exporter) throws IOException {
+        while (true) {
+            CompletableFuture<File> export = new CompletableFuture<>();
+            CompletableFuture<File> existing = exports.putIfAbsent(step.getKey(), export);
+            if (existing == null) {
+                return run(step, exporter, export);
+            }
+
+            File exportedFile;
+            try {
+                exportedFile = existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Failed to export " + step, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the export of " + step);
+            }
+            File reusedFile = exporter.reuse(step, exportedFile);
+            if (reusedFile != null) {
+                logger.info("Reusing export of {} from another target: {}", step, reusedFile.getName());
+                return reusedFile;
+            }
+            // Gone in the meantime, e.g. evicted from the export cache
+            exports.remove(step.getKey(), existing);
+        }
+    }
+
+    /**
+     * Record that a target is done with a snapshot and no longer needs its export
+     *
+     * @param exportedFile The export the target imported, or null if it did not import the snapshot
+     * @return The export once every target is done with the snapshot, or null while a target may still need it
+     *         or if the snapshot was never exported
+     */
+    File finish(MigrationStep step, File exportedFile) {
+        String key = step.getKey();
+        int finished = finishedTargets.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (finished < targetCount) {
+            return null;
+        }
+        finishedTargets.remove(key);
+        CompletableFuture<File> export = exports.remove(key);
+        if (exportedFile != null) {
+            return exportedFile;
+        }
+        return export != null && export.isDone() && !export.isCompletedExceptionally() ? export.join() : null;
+    }
+
+    private File run(MigrationStep step, Exporter exporter, CompletableFuture<File> export) throws IOException {
+        try {
+            File exportedFile = exporter.export(step);
+            export.complete(exportedFile);
+            return exportedFile;
+        } catch (IOException | RuntimeException e) {
+            exports.remove(step.getKey(), export);
+            export.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,237 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.model.MigrationStep;
+import com.ibm.baw.migrator.model.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-stage export/import pipeline
+ * A pool of export workers runs ahead of a pool of import workers so that the source and the target
+ * are busy at the same time. Imports of steps that share an ordering key (the same project) are
+ * performed strictly in plan order; steps of different projects may be imported concurrently.
+ * The number of snapshots exported but not yet imported is bounded, which applies backpressure to
+ * the export stage. Since an export is deleted once every target has imported it, unless the export
+ * cache or an import bundle owns it, this also bounds the disk space of the export directory.
+ */
+public class SnapshotPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotPipeline.class);
+
+    private final ExecutorService exportPool;
+    private final ExecutorService importPool;
+    private final Semaphore pendingExports;
+
+    /**
+     * Export stage of the pipeline
+     */
+    @FunctionalInterface
+    public interface StepExporter {
+        File export(MigrationStep step) throws IOException;
+    }
+
+    /**
+     * Import stage of the pipeline
+     */
+    @FunctionalInterface
+    public interface StepImporter {
+        Project importStep(MigrationStep step, File exportedFile) throws IOException;
+    }
+
+    /**
+     * Hands back an export that will not be imported, e.g. to unpin it in the export cache
+     */
+    @FunctionalInterface
+    public interface ExportReleaser {
+        void release(File exportedFile);
+    }
+
+    public SnapshotPipeline(int exportThreads, int importThreads, int maxPendingExports) {
+        this.exportPool = Executors.newFixedThreadPool(exportThreads, namedThreadFactory("export-worker"));
+        this.importPool = Executors.newFixedThreadPool(importThreads, namedThreadFactory("import-worker"));
+        this.pendingExports = new Semaphore(maxPendingExports, true);
+        logger.info("Created export/import pipeline: {} export workers, {} import workers, {} pending exports max",
+                   exportThreads, importThreads, maxPendingExports);
+    }
+
+    /**
+     * Run the given steps through the pipeline and wait for all of them to finish
+     *
+     * @param steps The steps in the order they must be imported (per ordering key)
+     * @param exporter Exports a step to a local file
+     * @param importer Imports a previously exported file
+     * @param releaser Receives the exports of steps that are skipped after their export succeeded
+     * @param stopOnFailure If true, a failed step causes the remaining steps with the same ordering key to be skipped
+     * @return One result per step, in the same order as the input
+     */
+    public List<StepResult> run(List<MigrationStep> steps, StepExporter exporter, StepImporter importer,
+                                ExportReleaser releaser, boolean stopOnFailure) throws IOException {
+        Map<String, CompletableFuture<Project>> lastImportByKey = new HashMap<>();
+        Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Project>> imports = new ArrayList<>(steps.size());
+
+        for (MigrationStep step : steps) {
+            // Backpressure: wait until an earlier export has been imported
+            try {
+                pendingExports.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for export capacity");
+            }
+
+            String key = step.getOrderingKey();
+
+            CompletableFuture<File> export = CompletableFuture.supplyAsync(() -> {
+                if (stopOnFailure && failedKeys.contains(key)) {
+                    throw new StepSkippedException();
+                }
+                try {
+                    return exporter.export(step);
+                } catch (IOException | RuntimeException e) {
+                    failedKeys.add(key);
+                    throw new CompletionException(e);
+                }
+            }, exportPool);
+
+            // Imports of the same project run one after another regardless of the previous outcome
+            CompletableFuture<?> predecessor = lastImportByKey
+                    .getOrDefault(key, CompletableFuture.completedFuture(null))
+                    .handle((result, error) -> null);
+
+            CompletableFuture<Project> imported = export
+                    .thenCombine(predecessor, (file, ignored) -> file)
+                    .thenApplyAsync(file -> {
+                        if (stopOnFailure && failedKeys.contains(key)) {
+                            releaser.release(file);
+                            throw new StepSkippedException();
+                        }
+                        try {
+                            return importer.importStep(step, file);
+                        } catch (IOException | RuntimeException e) {
+                            failedKeys.add(key);
+                            throw new CompletionException(e);
+                        }
+                    }, importPool);
+
+            imported.whenComplete((result, error) -> pendingExports.release());
+            lastImportByKey.put(key, imported);
+            imports.add(imported);
+        }
+
+        List<StepResult> results = new ArrayList<>(steps.size());
+        for (int i = 0; i < steps.size(); i++) {
+            MigrationStep step = steps.get(i);
+            try {
+                results.add(StepResult.succeeded(step, imports.get(i).join()));
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof StepSkippedException) {
+                    logger.warn("Skipped {} because an earlier snapshot of the same project failed", step);
+                    results.add(StepResult.skipped(step));
+                } else {
+                    results.add(StepResult.failed(step, cause));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop the worker pools
+     */
+    public void shutdown() {
+        exportPool.shutdownNow();
+        importPool.shutdownNow();
+    }
+
+    static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Marker for steps that were not attempted because an earlier step of the same project failed
+     */
+    private static class StepSkippedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StepSkippedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Outcome of a single pipeline step
+     */
+    public static class StepResult {
+        private final MigrationStep step;
+        private final Project importedProject;
+        private final Throwable error;
+        private final boolean skipped;
+
+        private StepResult(MigrationStep step, Project importedProject, Throwable error, boolean skipped) {
+            this.step = step;
+            this.importedProject = importedProject;
+            this.error = error;
+            this.skipped = skipped;
+        }
+
+        static StepResult succeeded(MigrationStep step, Project importedProject) {
+            return new StepResult(step, importedProject, null, false);
+        }
+
+        static StepResult failed(MigrationStep step, Throwable error) {
+            return new StepResult(step, null, error, false);
+        }
+
+        static StepResult skipped(MigrationStep step) {
+            return new StepResult(step, null, null, true);
+        }
+
+        public MigrationStep getStep() {
+            return step;
+        }
+
+        public Project getImportedProject() {
+            return importedProject;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        public boolean isSuccessful() {
+            return error == null && !skipped;
+        }
+    }
+}
+
+// Made with Bob
@@ -0,0 +1,207 @@
+/* Copyright contributors to the IBM BAW Project Export Import project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.ibm.baw.migrator.service;
+
+import com.ibm.baw.migrator.client.BAWApiClient;
+import com.ibm.baw.migrator.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the projects and snapshot names that exist on the target system
+ * The project catalog is downloaded once, on first use, and kept up to date from the responses of
+ * the imports performed by this run. Existence checks are map lookups without any network call.
+ * The index is thread-safe; call {@link #refresh()} if the target may have changed behind our back.
+ */
+public class TargetProjectIndex {
+    private static final Logger logger = LoggerFactory.getLogger(TargetProjectIndex.class);
+
+    private final MetadataRepository metadata;
+    // Replaced as a whole on refresh, so a reader never sees a catalog that is being cleared or filled
+    private volatile Catalog catalog;
+    // Target project ID -> names of its snapshots (loaded lazily per project)
+    private final Map<String, Set<String>> snapshotNames = new ConcurrentHashMap<>();
+
+    public TargetProjectIndex(BAWApiClient targetClient) {
+        this(new MetadataRepository(targetClient));
+    }
+
+    /**
+     * @param metadata The metadata of the target system, shared with the other components reading it
+     */
+    public TargetProjectIndex(MetadataRepository metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Find a project on the target by its name
+     */
+    public Project findByName(String name) throws IOException {
+        Catalog current = ensureLoaded();
+        return name != null ? current.projectsByName.get(name) : null;
+    }
+
+    /**
+     * Find a project on the target by its acronym
+     */
+    public Project findByAcronym(String acronym) throws IOException {
+        Catalog current = ensureLoaded();
+        return acronym != null ? current.projectsByAcronym.get(acronym) : null;
+    }
+
+    /**
+     * Get the names of all snapshots (on all branches) of a target project
+     */
+    public Set<String> getSnapshotNames(Project targetProject) throws IOException {
+        Set<String> names = snapshotNames.get(targetProject.getId());
+        if (names == null) {
+            names = loadSnapshotNames(targetProject);
+            Set<String> existing = snapshotNames.putIfAbsent(targetProject.getId(), names);
+            if (existing != null) {
+                names = existing;
+            }
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Record a successful import so that later lookups see it without asking the target
+     */
+    public void recordImport(Project importedProject, String snapshotName) {
+        if (importedProject == null) {
+            return;
+        }
+        // Before the catalog is loaded there is nothing to extend; the download will include the project
+        Catalog current = catalog;
+        if (current != null) {
+            current.add(importedProject);
+        }
+        if (snapshotName != null && importedProject.getId() != null) {
+            // Only extend snapshot sets that have been loaded; otherwise they are loaded in full on first use
+            Set<String> names = snapshotNames.get(importedProject.getId());
+            if (names != null) {
+                names.add(snapshotName);
+            }
+        }
+    }
+
+    /**
+     * Drop everything; the catalog is downloaded again on the next lookup
+     * Lookups that are already running finish on the previous catalog.
+     */
+    public synchronized void refresh() {
+        logger.info("Refreshing target project index");
+        metadata.clear();
+        snapshotNames.clear();
+        catalog = null;
+    }
+
+    /**
+     * Forget what is known about the target project of a source project, e.g. after a failed import of it
+     * Its snapshots are listed again on next use. If the project was not on the target, the import may
+     * have created it, so only then is the catalog downloaded again on the next lookup.
+     */
+    public void invalidate(Project sourceProject) {
+        Catalog current = catalog;
+        if (current == null) {
+            return;
+        }
+        Project targetProject = sourceProject.getName() != null ? current.projectsByName.get(sourceProject.getName()) : null;
+        if (targetProject == null && sourceProject.getAcronym() != null) {
+            targetProject = current.projectsByAcronym.get(sourceProject.getAcronym());
+        }
+        if (targetProject != null) {
+            logger.debug("Refreshing snapshots of target project: {}", targetProject.getDisplayName());
+            snapshotNames.remove(targetProject.getId());
+            metadata.clearProject(targetProject.getId());
+            return;
+        }
+        synchronized (this) {
+            if (catalog == current) {
+                logger.info("Refreshing target project catalog, {} may have been created", sourceProject.getDisplayName());
+                metadata.clearCatalog();
+                catalog = null;
+            }
+        }
+    }
+
+    private Catalog ensureLoaded() throws IOException {
+        Catalog current = catalog;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (catalog == null) {
+                logger.info("Building target project index");
+                Catalog loaded = new Catalog();
+                for (Project project : metadata.getProjects()) {
+                    loaded.add(project);
+                }
+                catalog = loaded;
+                logger.info("Indexed {} projects on target", loaded.projectsByAcronym.size());
+            }
+            return catalog;
+        }
+    }
+
+    private Set<String> loadSnapshotNames(Project targetProject) throws IOException {
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        try {
+            // One lightweight call covers every branch
+            ArtifactNamesResponse response = metadata.getClient().getSnapshotNames(targetProject.getId());
+            if (response.getArtifactNames() != null) {
+                names.addAll(response.getArtifactNames());
+            }
+            logger.debug("Indexed {} snapshots of target project: {}", names.size(), targetProject.getDisplayName());
+            return names;
+        } catch (IOException e) {
+            logger.warn("Failed to get snapshot names of target project: {}, listing branches instead: {}",
+                       targetProject.getDisplayName(), e.getMessage());
+        }
+        
+        for (Branch branch : metadata.getBranches(targetProject.getId())) {
+            for (Snapshot snapshot : metadata.getSnapshots(targetProject.getId(), branch.getName())) {
+                names.add(snapshot.getName());
+            }
+        }
+        logger.debug("Indexed {} snapshots of target project: {}", names.size(), targetProject.getDisplayName());
+        return names;
+    }
+
+    /**
+     * Projects of the target by name and by acronym; extended by the imports of this run
+     */
+    private static class Catalog {
+        private final Map<String, Project> projectsByName = new ConcurrentHashMap<>();
+        private final Map<String, Project> projectsByAcronym = new ConcurrentHashMap<>();
+
+        void add(Project project) {
+            if (project.getName() != null) {
+                projectsByName.put(project.getName(), project);
+            }
+            if (project.getAcronym() != null) {
+                projectsByAcronym.put(project.getAcronym(), project);
+            }
+        }
+    }
+}
+
+// Made with Bob